@@ -0,0 +1,148 @@
+"""Local stand-in for the Hevo ingest endpoint, for throughput benchmarks.
+
+Accepts event batches POSTed by the library, optionally adding latency and failing
+a fraction of requests with a 5xx and Retry-After header, and keeps counters that
+can be read back with GET /stats and cleared with GET /reset.
+
+    python ingest_server.py --latency-ms 100 --failure-rate 0.05 --retry-after 5
+"""
+import BaseHTTPServer
+import SocketServer
+import argparse
+import gzip
+import json
+import random
+import threading
+import time
+from StringIO import StringIO
+
+HOST_NAME = ''
+PORT_NUMBER = 8000
+
+
+class Stats(object):
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.reset()
+
+    def reset(self):
+        with self.lock:
+            self.started_at = time.time()
+            self.requests = 0
+            self.accepted_requests = 0
+            self.failed_requests = 0
+            self.malformed_requests = 0
+            self.events = 0
+            self.duplicate_events = 0
+            self.bytes_received = 0
+            self.event_ids = set()
+
+    def snapshot(self):
+        with self.lock:
+            elapsed = time.time() - self.started_at
+            return {
+                'elapsed_sec': elapsed,
+                'requests': self.requests,
+                'accepted_requests': self.accepted_requests,
+                'failed_requests': self.failed_requests,
+                'malformed_requests': self.malformed_requests,
+                'events': self.events,
+                'duplicate_events': self.duplicate_events,
+                'bytes_received': self.bytes_received,
+                'events_per_sec': self.events / elapsed if elapsed > 0 else 0,
+            }
+
+
+class IngestServer(SocketServer.ThreadingMixIn, BaseHTTPServer.HTTPServer):
+    daemon_threads = True
+
+    def __init__(self, address, options):
+        BaseHTTPServer.HTTPServer.__init__(self, address, request_handler)
+        self.options = options
+        self.stats = Stats()
+
+
+class request_handler(BaseHTTPServer.BaseHTTPRequestHandler):
+    def do_GET(self):
+        if self.path.startswith('/stats'):
+            self._respond(200, json.dumps(self.server.stats.snapshot()))
+        elif self.path.startswith('/reset'):
+            self.server.stats.reset()
+            self._respond(200, '1\n')
+        else:
+            self._respond(404, '')
+
+    def do_POST(self):
+        options = self.server.options
+        stats = self.server.stats
+
+        body = self.rfile.read(int(self.headers.getheader('content-length', 0)))
+        with stats.lock:
+            stats.requests += 1
+            stats.bytes_received += len(body)
+
+        if options.latency_ms > 0 or options.jitter_ms > 0:
+            time.sleep((options.latency_ms + random.uniform(0, options.jitter_ms)) / 1000.0)
+
+        if random.random() < options.failure_rate:
+            with stats.lock:
+                stats.failed_requests += 1
+            headers = {}
+            if options.retry_after is not None:
+                headers['Retry-After'] = str(options.retry_after)
+            self._respond(options.failure_status, '', headers)
+            return
+
+        try:
+            if self.headers.getheader('content-encoding') == 'gzip':
+                body = gzip.GzipFile(fileobj=StringIO(body)).read()
+            events = json.loads(body)
+        except (IOError, ValueError):
+            with stats.lock:
+                stats.malformed_requests += 1
+            self._respond(400, '0\n')
+            return
+
+        with stats.lock:
+            stats.accepted_requests += 1
+            for event in events:
+                event_id = event.get('properties', {}).get('$h_metadata', {}).get('h_event_id')
+                if event_id is not None and event_id in stats.event_ids:
+                    stats.duplicate_events += 1
+                else:
+                    stats.events += 1
+                    if event_id is not None:
+                        stats.event_ids.add(event_id)
+        self._respond(200, '1\n')
+
+    def _respond(self, status, body, headers=None):
+        self.send_response(status)
+        for name, value in (headers or {}).items():
+            self.send_header(name, value)
+        self.send_header('Content-Length', str(len(body)))
+        self.end_headers()
+        self.wfile.write(body)
+
+    def log_message(self, format, *args):
+        if self.server.options.verbose:
+            BaseHTTPServer.BaseHTTPRequestHandler.log_message(self, format, *args)
+
+
+if __name__ == '__main__':
+    parser = argparse.ArgumentParser(description='Local Hevo ingest stand-in')
+    parser.add_argument('--port', type=int, default=PORT_NUMBER)
+    parser.add_argument('--latency-ms', type=float, default=0, help='delay added to every POST')
+    parser.add_argument('--jitter-ms', type=float, default=0, help='random extra delay, up to this much')
+    parser.add_argument('--failure-rate', type=float, default=0, help='fraction of POSTs to fail, 0 to 1')
+    parser.add_argument('--failure-status', type=int, default=503, help='status of failed POSTs')
+    parser.add_argument('--retry-after', type=int, default=None, help='Retry-After seconds sent with failures')
+    parser.add_argument('--verbose', action='store_true')
+    options = parser.parse_args()
+
+    httpd = IngestServer((HOST_NAME, options.port), options)
+    try:
+        httpd.serve_forever()
+    except KeyboardInterrupt:
+        pass
+    httpd.server_close()
+    print json.dumps(httpd.stats.snapshot(), indent=2)
@@ -0,0 +1,57 @@
+package com.hevodata.android;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class AggregatorTest extends AndroidTestCase {
+
+    public void testRollups() throws JSONException {
+        final SessionMetadata sessionMetadata = new SessionMetadata();
+        final Map<String, String> books = new TreeMap<String, String>();
+        books.put("category", "books");
+        final Map<String, String> games = new TreeMap<String, String>();
+        games.put("category", "games");
+
+        final Aggregator aggregator = new Aggregator();
+        assertTrue(aggregator.isEmpty());
+        for (int i = 1; i <= 10; i++) {
+            aggregator.add(new AnalyticsMessages.AggregateDescription("Item Viewed", books, i, "user", sessionMetadata));
+        }
+        aggregator.add(new AnalyticsMessages.AggregateDescription("Item Viewed", games, -1, "user", sessionMetadata));
+        aggregator.add(new AnalyticsMessages.AggregateDescription("Item Viewed", games, 3, "other user", sessionMetadata));
+        aggregator.add(new AnalyticsMessages.AggregateDescription("Scrolled", Collections.<String, String>emptyMap(), 2.5, "user", sessionMetadata));
+        assertFalse(aggregator.isEmpty());
+
+        final List<Aggregator.Rollup> rollups = aggregator.drain();
+        assertTrue(aggregator.isEmpty());
+        assertEquals(4, rollups.size());
+
+        final Aggregator.Rollup booksRollup = rollups.get(0);
+        assertEquals("Item Viewed", booksRollup.getEventName());
+        assertEquals(10, booksRollup.getCount());
+        assertEquals(55.0, booksRollup.getSum());
+        assertEquals(1.0, booksRollup.getMin());
+        assertEquals(10.0, booksRollup.getMax());
+
+        final JSONObject properties = booksRollup.toProperties(60000, 120000);
+        assertEquals("books", properties.getString("category"));
+        assertEquals("user", properties.getString("distinct_id"));
+        assertEquals(10, properties.getLong("$count"));
+        assertEquals(55.0, properties.getDouble("$sum"));
+        assertEquals(60, properties.getLong("$window_start_sec"));
+        assertEquals(120, properties.getLong("$window_end_sec"));
+        assertEquals(120, properties.getLong("time"));
+
+        assertEquals(1, rollups.get(1).getCount());
+        assertEquals(-1.0, rollups.get(1).getMax());
+        assertEquals(1, rollups.get(2).getCount());
+        assertEquals("Scrolled", rollups.get(3).getEventName());
+    }
+}
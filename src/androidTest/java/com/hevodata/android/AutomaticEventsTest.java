@@ -75,7 +75,7 @@ public class AutomaticEventsTest extends AndroidTestCase {
             }
 
             @Override
-            public int addJSON(JSONObject j, boolean isAutomaticRecord) {
+            public int addJSON(String j, boolean isAutomaticRecord) {
                 mTrackedEvents++;
                 mLatch.countDown();
                 return super.addJSON(j, isAutomaticRecord);
@@ -212,7 +212,7 @@ public class AutomaticEventsTest extends AndroidTestCase {
             }
 
             @Override
-            public int addJSON(JSONObject j, boolean isAutomaticRecord) {
+            public int addJSON(String j, boolean isAutomaticRecord) {
                 secondLatch.countDown();
                 return super.addJSON(j, isAutomaticRecord);
             }
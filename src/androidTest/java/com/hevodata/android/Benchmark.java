@@ -0,0 +1,166 @@
+package com.hevodata.android;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal micro benchmark harness for instrumentation tests, reporting time and
+ * allocations per operation on the calling thread. Results are written to logcat
+ * with the tag HevoAPI.Benchmark, for example with
+ *
+ * <pre>
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.hevodata.android.BenchmarkTest
+ * adb logcat -s HevoAPI.Benchmark
+ * </pre>
+ */
+@SuppressWarnings("deprecation") // Debug alloc counting is the only per-thread allocation counter available
+public class Benchmark {
+    public static final String LOGTAG = "HevoAPI.Benchmark";
+
+    public interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * An operation that can only be measured once, like the first call of something, which
+     * starts on the main thread and may finish in the background.
+     */
+    public interface FirstOperation {
+        /** Run on the main thread */
+        void start() throws Exception;
+
+        /** Run on the calling thread after start returns, returns when the operation is done */
+        void awaitDone() throws Exception;
+    }
+
+    public static class Result {
+        public Result(String name, int iterations, long elapsedNanos, long allocations, long allocatedBytes) {
+            this.name = name;
+            this.iterations = iterations;
+            this.nanosPerOp = elapsedNanos / iterations;
+            this.allocationsPerOp = (double) allocations / iterations;
+            this.bytesPerOp = (double) allocatedBytes / iterations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-40s %8d iterations %12d ns/op %10.1f allocs/op %12.1f bytes/op",
+                    name, iterations, nanosPerOp, allocationsPerOp, bytesPerOp);
+        }
+
+        public final String name;
+        public final int iterations;
+        public final long nanosPerOp;
+        public final double allocationsPerOp;
+        public final double bytesPerOp;
+    }
+
+    /**
+     * Runs the operation warmup times without measuring, then iterations times measuring
+     * elapsed time and the allocations made by the calling thread.
+     */
+    public static Result measure(String name, int warmup, int iterations, Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+
+        Runtime.getRuntime().gc();
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                operation.run(warmup + i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Result result = new Result(name, iterations, elapsed, Debug.getThreadAllocCount(), Debug.getThreadAllocSize());
+        Log.i(LOGTAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Like measure, but counts allocations made by every thread. Used for operations
+     * that complete on the Hevo worker thread.
+     */
+    public static Result measureGlobal(String name, int iterations, Operation operation) throws Exception {
+        Runtime.getRuntime().gc();
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        final long start = System.nanoTime();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Result result = new Result(name, iterations, elapsed, Debug.getGlobalAllocCount(), Debug.getGlobalAllocSize());
+        Log.i(LOGTAG, result.toString());
+        return result;
+    }
+
+    /**
+     * Runs operation once, reporting two results: the time the main thread was blocked in
+     * start and what it allocated, then the time from start until awaitDone returned and
+     * what every thread allocated meanwhile.
+     */
+    public static Result[] measureFirst(String name, final FirstOperation operation) throws Exception {
+        final long[] mainThread = new long[4]; // start time, blocked time, allocations, allocated bytes
+        final Exception[] failure = new Exception[1];
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Runtime.getRuntime().gc();
+        Debug.resetGlobalAllocCount();
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        final long end;
+        try {
+            new Handler(Looper.getMainLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    Debug.resetThreadAllocCount();
+                    Debug.resetThreadAllocSize();
+                    mainThread[0] = System.nanoTime();
+                    try {
+                        operation.start();
+                    } catch (final Exception e) {
+                        failure[0] = e;
+                    }
+                    mainThread[1] = System.nanoTime() - mainThread[0];
+                    mainThread[2] = Debug.getThreadAllocCount();
+                    mainThread[3] = Debug.getThreadAllocSize();
+                    started.countDown();
+                }
+            });
+            if (!started.await(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Main thread did not run " + name);
+            }
+            if (null != failure[0]) {
+                throw failure[0];
+            }
+            operation.awaitDone();
+            end = System.nanoTime();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        final Result blocked = new Result(name + " (main thread)", 1, mainThread[1], mainThread[2], mainThread[3]);
+        final Result done = new Result(name + " (until done)", 1, end - mainThread[0], Debug.getGlobalAllocCount(), Debug.getGlobalAllocSize());
+        Log.i(LOGTAG, blocked.toString());
+        Log.i(LOGTAG, done.toString());
+        return new Result[] { blocked, done };
+    }
+}
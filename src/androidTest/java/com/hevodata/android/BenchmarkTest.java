@@ -0,0 +1,213 @@
+package com.hevodata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the track-to-disk hot path. These don't assert on timings, which vary
+ * too much between devices, they report ns/op and allocations/op to logcat. See {@link Benchmark}.
+ */
+public class BenchmarkTest extends AndroidTestCase {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        mMockPreferences = new TestUtils.EmptyPreferences(getContext());
+        mConfig = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return null;
+            }
+
+            @Override
+            public int getMaximumQueueSize() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() { return true; }
+        };
+        mProperties = new JSONObject();
+        mProperties.put("screen", "checkout");
+        mProperties.put("item_count", 3);
+        mProperties.put("total", 42.5);
+        mProperties.put("first_purchase", false);
+    }
+
+    public void testSessionMetadata() throws Exception {
+        final SessionMetadata metadata = new SessionMetadata();
+        Benchmark.measure("SessionMetadata.nextEvent", WARMUP, ITERATIONS * 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                metadata.nextEvent();
+            }
+        });
+    }
+
+    public void testEventWriter() throws Exception {
+        final EventWriter writer = new EventWriter();
+        final SessionMetadata.EventMetadata metadata = new SessionMetadata().nextEvent();
+        Benchmark.measure("EventWriter.write", WARMUP, ITERATIONS * 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                writer.write("benchmark event", mProperties, metadata);
+            }
+        });
+    }
+
+    public void testTrackCallerSide() throws Exception {
+        final InMemoryEventStore store = new InMemoryEventStore(mConfig);
+        final HevoAPI api = makeApi(store);
+        Benchmark.measure("HevoAPI.track (calling thread)", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                api.track("benchmark event", mProperties);
+            }
+        });
+    }
+
+    public void testTrackEventBuilderCallerSide() throws Exception {
+        final InMemoryEventStore store = new InMemoryEventStore(mConfig);
+        final HevoAPI api = makeApi(store);
+        final EventBuilder event = new EventBuilder("benchmark event");
+        Benchmark.measure("HevoAPI.track(EventBuilder) (calling thread)", WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                api.track(event.clear()
+                        .put("screen", "checkout")
+                        .put("item_count", 3)
+                        .put("total", 42.5)
+                        .put("first_purchase", false));
+            }
+        });
+    }
+
+    public void testTrackToDisk() throws Exception {
+        final CountDownLatch stored = new CountDownLatch(ITERATIONS);
+        final HDbAdapter adapter = new HDbAdapter(getContext(), "BenchmarkTrackDB", mConfig) {
+            @Override
+            public int addJSON(String j, boolean isAutomaticRecord) {
+                final int ret = super.addJSON(j, isAutomaticRecord);
+                stored.countDown();
+                return ret;
+            }
+        };
+        adapter.purge();
+        final HevoAPI api = makeApi(adapter);
+
+        Benchmark.measureGlobal("HevoAPI.track to SQLite (all threads)", ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) throws InterruptedException {
+                api.track("benchmark event", mProperties);
+                if (iteration == ITERATIONS - 1) {
+                    assertTrue(stored.await(60, TimeUnit.SECONDS));
+                }
+            }
+        });
+        adapter.deleteDB();
+    }
+
+    public void testSQLiteInsert() throws Exception {
+        final HDbAdapter adapter = new HDbAdapter(getContext(), "BenchmarkInsertDB", mConfig);
+        adapter.purge();
+        measureInsert("HDbAdapter.append", adapter);
+        adapter.deleteDB();
+    }
+
+    public void testMappedLogInsert() throws Exception {
+        final MappedEventStore log = new MappedEventStore(new File(getContext().getFilesDir(), "BenchmarkInsertLog"), mConfig);
+        log.purge();
+        measureInsert("MappedEventStore.append", log);
+        log.deleteDB();
+    }
+
+    public void testSQLiteBatch() throws Exception {
+        final HDbAdapter adapter = new HDbAdapter(getContext(), "BenchmarkBatchDB", mConfig);
+        adapter.purge();
+        measureBatch("HDbAdapter.peekBatch (50 events)", adapter);
+        adapter.deleteDB();
+    }
+
+    public void testMappedLogBatch() throws Exception {
+        final MappedEventStore log = new MappedEventStore(new File(getContext().getFilesDir(), "BenchmarkBatchLog"), mConfig);
+        log.purge();
+        measureBatch("MappedEventStore.peekBatch (50 events)", log);
+        log.deleteDB();
+    }
+
+    private void measureInsert(String name, final EventStore store) throws Exception {
+        final String event = new JSONObject()
+                .put("event", "benchmark event")
+                .put("properties", mProperties)
+                .toString();
+        Benchmark.measure(name, WARMUP, ITERATIONS, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                store.append(event, false);
+            }
+        });
+    }
+
+    private void measureBatch(String name, final EventStore store) throws Exception {
+        final String event = new JSONObject()
+                .put("event", "benchmark event")
+                .put("properties", mProperties)
+                .toString();
+        for (int i = 0; i < 50; i++) {
+            store.append(event, false);
+        }
+        Benchmark.measure(name, WARMUP / 10, ITERATIONS / 10, new Benchmark.Operation() {
+            @Override
+            public void run(int iteration) {
+                assertNotNull(store.peekBatch(true));
+            }
+        });
+    }
+
+    private HevoAPI makeApi(final EventStore store) {
+        // Inside the subclass mConfig would be the field of AnalyticsMessages, not yet set
+        final HevoConfig config = mConfig;
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected EventStore makeEventStore(Context context) {
+                return store;
+            }
+
+            @Override
+            protected HevoConfig getConfig(Context context) {
+                return config;
+            }
+        };
+
+        return new TestUtils.CleanHevoAPI(getContext(), mMockPreferences) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+        };
+    }
+
+    private Future<SharedPreferences> mMockPreferences;
+    private HevoConfig mConfig;
+    private JSONObject mProperties;
+}
@@ -0,0 +1,166 @@
+package com.hevodata.android;
+
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+
+public class EventStoreTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        mConfig = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getMaximumQueueSize() {
+                return 120;
+            }
+        };
+        mLogDirectory = new File(getContext().getFilesDir(), "EventStoreTestLog");
+        mStores = new EventStore[] {
+                new HDbAdapter(getContext(), "EventStoreTestDB", mConfig),
+                new MappedEventStore(mLogDirectory, mConfig),
+                new InMemoryEventStore(mConfig),
+        };
+        for (EventStore store : mStores) {
+            store.purge();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (EventStore store : mStores) {
+            store.deleteDB();
+        }
+    }
+
+    public void testBatchesInOrder() throws JSONException {
+        for (EventStore store : mStores) {
+            assertNull(store.peekBatch(true));
+            for (int i = 0; i < 60; i++) {
+                assertEquals(i + 1, store.append(new JSONObject().put("n", i).toString(), false));
+            }
+
+            EventBatch batch = store.peekBatch(true);
+            JSONArray events = new JSONArray(batch.getData());
+            assertEquals(50, events.length());
+            assertEquals(0, events.getJSONObject(0).getInt("n"));
+            assertEquals(49, events.getJSONObject(49).getInt("n"));
+            assertEquals(60, batch.getDepth());
+
+            store.ack(batch);
+            assertEquals(10, store.depth(true));
+            batch = store.peekBatch(true);
+            events = new JSONArray(batch.getData());
+            assertEquals(10, events.length());
+            assertEquals(50, events.getJSONObject(0).getInt("n"));
+
+            store.ack(batch);
+            assertEquals(0, store.depth(true));
+            assertNull(store.peekBatch(true));
+        }
+    }
+
+    public void testAutomaticEventsExcluded() throws JSONException {
+        for (EventStore store : mStores) {
+            store.append(new JSONObject().put("name", "user 1").toString(), false);
+            store.append(new JSONObject().put("name", "automatic 1").toString(), true);
+            store.append(new JSONObject().put("name", "user 2").toString(), false);
+
+            final EventBatch batch = store.peekBatch(false);
+            final JSONArray events = new JSONArray(batch.getData());
+            assertEquals(2, events.length());
+            assertEquals("user 1", events.getJSONObject(0).getString("name"));
+            assertEquals("user 2", events.getJSONObject(1).getString("name"));
+            assertEquals(2, batch.getDepth());
+            assertEquals(3, store.depth(true));
+
+            // The automatic event skipped by the batch is still queued once it is acknowledged
+            store.ack(batch);
+            assertEquals(1, store.depth(true));
+            assertEquals(0, store.depth(false));
+            final JSONArray remaining = new JSONArray(store.peekBatch(true).getData());
+            assertEquals(1, remaining.length());
+            assertEquals("automatic 1", remaining.getJSONObject(0).getString("name"));
+        }
+    }
+
+    public void testQueueBounds() throws JSONException {
+        for (EventStore store : mStores) {
+            for (int i = 0; i < 125; i++) {
+                store.append(new JSONObject().put("n", i).toString(), false);
+            }
+            final EventBatch batch = store.peekBatch(true);
+            assertEquals(120, batch.getDepth());
+            assertEquals(5, new JSONArray(batch.getData()).getJSONObject(0).getInt("n"));
+        }
+    }
+
+    public void testExpiry() throws JSONException {
+        for (EventStore store : mStores) {
+            for (int i = 0; i < 5; i++) {
+                store.append(new JSONObject().put("n", i).toString(), false);
+            }
+
+            assertEquals(0, store.expire(System.currentTimeMillis() - 60 * 1000, 10));
+            final long now = System.currentTimeMillis();
+            assertEquals(3, store.expire(now, 3));
+            assertEquals(3, new JSONArray(store.peekBatch(true).getData()).getJSONObject(0).getInt("n"));
+            assertEquals(2, store.expire(now, 3));
+            assertNull(store.peekBatch(true));
+        }
+    }
+
+    public void testLowOnSpace() throws JSONException {
+        final HDbAdapter store = new HDbAdapter(getContext(), "EventStoreTestDB", mConfig) {
+            @Override
+            protected boolean belowMemThreshold() {
+                return mLowOnSpace ? false : super.belowMemThreshold();
+            }
+        };
+        mLowOnSpace = true;
+        assertEquals(EventStore.DB_OUT_OF_MEMORY_ERROR, store.append(new JSONObject().put("n", -1).toString(), false));
+        assertEquals(0, store.depth(true));
+
+        mLowOnSpace = false;
+        for (int i = 0; i < 109; i++) {
+            store.append(new JSONObject().put("n", i).toString(), false);
+        }
+        store.append(new JSONObject().put("name", "automatic").toString(), true);
+
+        // Automatic events are evicted first, then the oldest, and the new event is kept
+        mLowOnSpace = true;
+        assertEquals(11, store.append(new JSONObject().put("n", 109).toString(), false));
+        final JSONArray events = new JSONArray(store.peekBatch(true).getData());
+        assertEquals(11, events.length());
+        assertEquals(99, events.getJSONObject(0).getInt("n"));
+        assertEquals(109, events.getJSONObject(10).getInt("n"));
+    }
+
+    public void testMappedLogReopen() throws JSONException {
+        final MappedEventStore log = new MappedEventStore(mLogDirectory, mConfig);
+        for (int i = 0; i < 60; i++) {
+            log.append(new JSONObject().put("n", i).toString(), false);
+        }
+        log.ack(log.peekBatch(true));
+
+        final MappedEventStore reopened = new MappedEventStore(mLogDirectory, mConfig);
+        final EventBatch batch = reopened.peekBatch(true);
+        assertEquals(10, batch.getDepth());
+        assertEquals(50, new JSONArray(batch.getData()).getJSONObject(0).getInt("n"));
+
+        assertEquals(11, reopened.append(new JSONObject().put("n", 60).toString(), false));
+        reopened.ack(batch);
+        final JSONArray events = new JSONArray(reopened.peekBatch(true).getData());
+        assertEquals(1, events.length());
+        assertEquals(60, events.getJSONObject(0).getInt("n"));
+    }
+
+    private HevoConfig mConfig;
+    private volatile boolean mLowOnSpace;
+    private File mLogDirectory;
+    private EventStore[] mStores;
+}
@@ -0,0 +1,58 @@
+package com.hevodata.android;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class EventThrottleTest extends AndroidTestCase {
+
+    public void testSampling() throws JSONException {
+        final EventThrottle throttle = new EventThrottle(0);
+        throttle.setSampleRate("sampled", 0.25);
+
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (throttle.shouldTrack("sampled")) {
+                kept++;
+            }
+            assertTrue(throttle.shouldTrack("other"));
+        }
+        assertEquals(25, kept);
+
+        final long now = System.currentTimeMillis();
+        assertTrue(throttle.isSummaryDue(now));
+        final JSONObject summary = throttle.takeSummary(now);
+        assertEquals(75, summary.getJSONObject("$sampled_out").getLong("sampled"));
+        assertEquals(0.25, summary.getJSONObject("$sample_rates").getDouble("sampled"));
+        assertFalse(summary.getJSONObject("$sampled_out").has("other"));
+
+        assertFalse(throttle.isSummaryDue(now));
+        assertNull(throttle.takeSummary(now));
+
+        throttle.setSampleRate("sampled", 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(throttle.shouldTrack("sampled"));
+        }
+    }
+
+    public void testRateLimit() throws JSONException {
+        final EventThrottle throttle = new EventThrottle(60 * 1000);
+        throttle.setRateLimit("limited", 0.001, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(throttle.shouldTrack("limited"));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertFalse(throttle.shouldTrack("limited"));
+        }
+
+        // Not due until the interval has passed
+        assertFalse(throttle.isSummaryDue(System.currentTimeMillis()));
+        final JSONObject summary = throttle.takeSummary(System.currentTimeMillis());
+        assertEquals(10, summary.getJSONObject("$rate_limited").getLong("limited"));
+
+        throttle.setRateLimit("limited", 0, 0);
+        assertTrue(throttle.shouldTrack("limited"));
+    }
+}
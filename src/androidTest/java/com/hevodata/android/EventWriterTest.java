@@ -0,0 +1,115 @@
+package com.hevodata.android;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class EventWriterTest extends AndroidTestCase {
+
+    public void testMatchesJSONObject() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("string", "quote \" backslash \\ slash / tab \t newline \n control \u0001 unicode é中");
+        properties.put("int", 42);
+        properties.put("long", Long.MAX_VALUE);
+        properties.put("double", 42.5);
+        properties.put("whole double", 3.0);
+        properties.put("negative zero", -0.0);
+        properties.put("boolean", true);
+        properties.put("null", JSONObject.NULL);
+        properties.put("array", new JSONArray().put(1).put("two"));
+        properties.put("object", new JSONObject().put("nested", "value"));
+        properties.put("$h_metadata", "replaced");
+
+        final SessionMetadata.EventMetadata metadata = new SessionMetadata().nextEvent();
+
+        final JSONObject expected = new JSONObject();
+        final JSONObject expectedProperties = new JSONObject();
+        for (final Iterator<?> iter = properties.keys(); iter.hasNext();) {
+            final String key = (String) iter.next();
+            expectedProperties.put(key, properties.get(key));
+        }
+        expectedProperties.put("$h_metadata", metadata.toJSONObject());
+        expected.put("event", "some \"event\"");
+        expected.put("properties", expectedProperties);
+
+        final EventWriter writer = new EventWriter();
+        assertEquals(expected.toString(), writer.write("some \"event\"", properties, metadata));
+
+        // The buffer is reused, nothing from the previous event may leak into the next
+        final JSONObject empty = new JSONObject();
+        empty.put("event", "empty");
+        empty.put("properties", new JSONObject().put("$h_metadata", metadata.toJSONObject()));
+        assertEquals(empty.toString(), writer.write("empty", null, metadata));
+    }
+
+    public void testReferrerProperties() throws JSONException {
+        final Map<String, String> referrerProperties = new LinkedHashMap<String, String>();
+        referrerProperties.put("utm_source", "a \"source\"");
+        referrerProperties.put("utm_medium", "replaced by properties");
+        referrerProperties.put("utm_term", "replaced by builder");
+        final ReferrerProperties referrer = new ReferrerProperties(referrerProperties);
+
+        final JSONObject properties = new JSONObject();
+        properties.put("utm_medium", "medium");
+        final EventBuilder builder = new EventBuilder("referred", 1).put("utm_term", "term");
+        final SessionMetadata.EventMetadata metadata = new SessionMetadata().nextEvent();
+
+        final JSONObject expectedProperties = new JSONObject();
+        expectedProperties.put("utm_source", "a \"source\"");
+        expectedProperties.put("utm_medium", "medium");
+        expectedProperties.put("utm_term", "term");
+        expectedProperties.put("$h_metadata", metadata.toJSONObject());
+        final JSONObject expected = new JSONObject();
+        expected.put("event", "referred");
+        expected.put("properties", expectedProperties);
+
+        final EventWriter writer = new EventWriter();
+        assertEquals(expected.toString(), writer.write("referred", properties, builder, referrer, metadata));
+        assertEquals("a \"source\"", referrer.getProperties().get("utm_source"));
+    }
+
+    public void testTypedProperties() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("time", 1000);
+        properties.put("replaced", "by builder");
+
+        final EventBuilder builder = new EventBuilder("typed", 1);
+        builder.put("replaced", 7)
+                .put("double", 0.1)
+                .put("whole double", 3.0)
+                .put("negative zero", -0.0)
+                .put("big double", 1e20)
+                .put("boolean", false)
+                .put("string", "a \"string\"")
+                .put("removed", "soon")
+                .put("nan", Double.NaN)
+                .put("removed", (String) null);
+        assertEquals(7, builder.size());
+
+        final SessionMetadata.EventMetadata metadata = new SessionMetadata().nextEvent();
+        final JSONObject expectedProperties = new JSONObject();
+        expectedProperties.put("time", 1000);
+        builder.putAll(expectedProperties);
+        expectedProperties.put("$h_metadata", metadata.toJSONObject());
+        final JSONObject expected = new JSONObject();
+        expected.put("event", "typed");
+        expected.put("properties", expectedProperties);
+
+        final EventWriter writer = new EventWriter();
+        final String written = writer.write("typed", properties, builder.copy(), metadata);
+        assertEquals(expected.toString(), written);
+
+        final JSONObject parsed = new JSONObject(written).getJSONObject("properties");
+        assertEquals(7, parsed.getInt("replaced"));
+        assertEquals(0.1, parsed.getDouble("double"));
+        assertFalse(parsed.getBoolean("boolean"));
+        assertFalse(parsed.has("removed"));
+        assertFalse(parsed.has("nan"));
+    }
+}
@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -58,6 +59,19 @@ public class HevoBasicTest extends AndroidTestCase {
         assertEquals(BuildConfig.HEVO_VERSION, HevoConfig.VERSION);
     }
 
+    public void testSystemInformationMatchesPackageManager() throws PackageManager.NameNotFoundException {
+        final SystemInformation systemInformation = SystemInformation.getInstance(mContext);
+        final PackageManager packageManager = getContext().getPackageManager();
+        final int versionCode = packageManager.getPackageInfo(getContext().getPackageName(), 0).versionCode;
+
+        // Looked up on first use, then the same answers are kept
+        assertEquals(Integer.valueOf(versionCode), systemInformation.getAppVersionCode());
+        assertEquals(packageManager.hasSystemFeature(PackageManager.FEATURE_NFC), systemInformation.hasNFC());
+        assertEquals(packageManager.hasSystemFeature(PackageManager.FEATURE_TELEPHONY), systemInformation.hasTelephony());
+        assertSame(systemInformation.getDisplayMetrics(), systemInformation.getDisplayMetrics());
+        assertEquals(systemInformation.getAppName(), systemInformation.getAppName());
+    }
+
     public void testGeneratedDistinctId() {
         HevoAPI hevo = new TestUtils.CleanHevoAPI(getContext(), mMockPreferences);
         String generatedId1 = hevo.getDistinctId();
@@ -97,15 +111,145 @@ public class HevoBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testIncrementalExpiry() {
+        HDbAdapter adapter = new HDbAdapter(getContext(), "ExpiryTestDB");
+        adapter.cleanupAllEvents();
+        for (int i = 0; i < 5; i++) {
+            adapter.addJSON(new JSONObject(), false);
+        }
+
+        final long now = System.currentTimeMillis();
+        assertEquals(2, adapter.cleanupEvents(now, 2));
+        assertEquals(2, adapter.cleanupEvents(now, 2));
+        assertEquals(1, adapter.cleanupEvents(now, 2));
+        assertEquals(0, adapter.cleanupEvents(now, 2));
+        assertNull(adapter.generateDataString(true));
+
+        adapter.vacuum(128);
+        adapter.deleteDB();
+    }
+
+    public void testQueueEviction() throws JSONException {
+        final HevoConfig config = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getMaximumQueueSize() {
+                return 3;
+            }
+        };
+        HDbAdapter adapter = new HDbAdapter(getContext(), "EvictionTestDB", config);
+        adapter.cleanupAllEvents();
+
+        adapter.addJSON(new JSONObject("{\"name\": \"automatic 1\"}"), true);
+        adapter.addJSON(new JSONObject("{\"name\": \"user 1\"}"), false);
+        adapter.addJSON(new JSONObject("{\"name\": \"automatic 2\"}"), true);
+        assertEquals(3, adapter.addJSON(new JSONObject("{\"name\": \"user 2\"}"), false));
+        assertEquals(3, adapter.addJSON(new JSONObject("{\"name\": \"user 3\"}"), false));
+
+        JSONArray events = new JSONArray(adapter.generateDataString(true)[1]);
+        assertEquals(3, events.length());
+        assertEquals("user 1", events.getJSONObject(0).getString("name"));
+        assertEquals("user 2", events.getJSONObject(1).getString("name"));
+        assertEquals("user 3", events.getJSONObject(2).getString("name"));
+
+        assertEquals(3, adapter.addJSON(new JSONObject("{\"name\": \"user 4\"}"), false));
+        events = new JSONArray(adapter.generateDataString(true)[1]);
+        assertEquals("user 2", events.getJSONObject(0).getString("name"));
+
+        adapter.deleteDB();
+    }
+
+    public void testPipelineStats() throws InterruptedException {
+        final BlockingQueue<String> posts = new LinkedBlockingQueue<>();
+        final HevoConfig mockConfig = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return "EVENTS_ENDPOINT";
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() { return true; }
+        };
+        final RemoteService mockPoster = new HttpService() {
+            @Override
+            public byte[] performRequest(String endpointUrl, String rawMessage, SSLSocketFactory socketFactory) {
+                posts.add(rawMessage);
+                return TestUtils.bytes("1\n");
+            }
+        };
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected EventStore makeEventStore(Context context) {
+                return new InMemoryEventStore(mockConfig);
+            }
+
+            @Override
+            protected HevoConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return mockPoster;
+            }
+        };
+        HevoAPI metrics = new TestUtils.CleanHevoAPI(getContext(), mMockPreferences) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        metrics.track("first", null);
+        metrics.track("second", null);
+        metrics.track("third \u20ac", null);
+        metrics.flush();
+        final String posted = posts.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(posted);
+        // The batch is acknowledged after the post returns
+        for (int i = 0; i < 50 && metrics.getPipelineStats().getEventsSent() < 3; i++) {
+            Thread.sleep(100);
+        }
+
+        final PipelineStats stats = metrics.getPipelineStats();
+        assertEquals(3, stats.getEventsEnqueued());
+        assertEquals(3, stats.getEventsStored());
+        assertEquals(3, stats.getEventsSent());
+        assertEquals(0, stats.getEventsDropped());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(0, stats.getFailedFlushes());
+        assertEquals(3, stats.getInsertLatency().getCount());
+        assertEquals(1, stats.getBatchSize().getCount());
+        assertEquals(3, stats.getBatchSize().getMax());
+        assertEquals(3, stats.getBatchSize().getP50());
+        assertTrue(stats.getInsertLatency().getP99() >= stats.getInsertLatency().getP50());
+        assertEquals(TestUtils.bytes(posted).length, stats.getBytesSent());
+    }
+
+    public void testUtf8Length() {
+        final String[] samples = {"", "ascii", "caf\u00e9", "\u20ac 5", "\ud83d\ude00 smile", "{\"a\":\"\u0800\"}"};
+        for (final String sample : samples) {
+            assertEquals(sample, TestUtils.bytes(sample).length, AnalyticsMessages.utf8Length(sample));
+        }
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
 
         final HDbAdapter explodingDb = new HDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, boolean isAutomatic) {
+            public int addJSON(String message, boolean isAutomatic) {
                 if (!isAutomatic) {
-                    messages.add(message);
+                    try {
+                        messages.add(new JSONObject(message));
+                    } catch (JSONException e) {
+                        throw new RuntimeException("Malformed data passed to test mock adapter", e);
+                    }
                     throw new RuntimeException("BANG!");
                 }
 
@@ -151,9 +295,13 @@ public class HevoBasicTest extends AndroidTestCase {
 
         final HDbAdapter eventOperationsAdapter = new HDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, boolean isAutomatic) {
+            public int addJSON(String message, boolean isAutomatic) {
                 if (!isAutomatic) {
-                    messages.add(message);
+                    try {
+                        messages.add(new JSONObject(message));
+                    } catch (JSONException e) {
+                        throw new RuntimeException("Malformed data passed to test mock adapter", e);
+                    }
                 }
 
                 return 1;
@@ -259,11 +407,11 @@ public class HevoBasicTest extends AndroidTestCase {
 
         final HDbAdapter mockAdapter = new HDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject message, boolean isAutomaticEvent) {
+            public int addJSON(String message, boolean isAutomaticEvent) {
                 if (!isAutomaticEvent) {
                     try {
                         messages.put("TABLE events");
-                        messages.put(message.toString());
+                        messages.put(message);
                     } catch (InterruptedException e) {
                         throw new RuntimeException(e);
                     }
@@ -516,9 +664,13 @@ public class HevoBasicTest extends AndroidTestCase {
 
                 final HDbAdapter dbMock = new HDbAdapter(getContext()) {
                     @Override
-                    public int addJSON(JSONObject message, boolean isAutomatic) {
+                    public int addJSON(String message, boolean isAutomatic) {
                         if (!isAutomatic) {
-                            mMessages.add(message);
+                            try {
+                                mMessages.add(new JSONObject(message));
+                            } catch (JSONException e) {
+                                throw new RuntimeException("Malformed data passed to test mock adapter", e);
+                            }
                         }
 
                         return 1;
@@ -596,6 +748,33 @@ public class HevoBasicTest extends AndroidTestCase {
         assertEquals("EVENTS ENDPOINT", testConfig.getEventsEndpoint());
     }
 
+    public void testConfigurationBuilder() {
+        final HevoConfig testConfig = new HevoConfig.Builder()
+                .setBulkUploadLimit(1)
+                .setFlushInterval(2)
+                .setDataExpiration(3)
+                .setEventStore(HevoConfig.EVENT_STORE_MAPPED_LOG)
+                .setIntegrationEndpoint("INTEGRATION ENDPOINT")
+                .build();
+        assertEquals(1, testConfig.getBulkUploadLimit());
+        assertEquals(2, testConfig.getFlushInterval());
+        assertEquals(3, testConfig.getDataExpiration());
+        assertEquals(HevoConfig.EVENT_STORE_MAPPED_LOG, testConfig.getEventStore());
+        assertEquals("INTEGRATION ENDPOINT", testConfig.getEventsEndpoint());
+
+        // Defaults match those of a manifest without any options
+        final HevoConfig defaultConfig = new HevoConfig(new Bundle(), getContext());
+        assertEquals(defaultConfig.getMaximumQueueSize(), testConfig.getMaximumQueueSize());
+        assertEquals(defaultConfig.getAggregationWindow(), testConfig.getAggregationWindow());
+        assertEquals(defaultConfig.getDisableAppOpenEvent(), testConfig.getDisableAppOpenEvent());
+
+        // The default socket factory is created when first asked for, unless one was set
+        assertNotNull(testConfig.getSSLSocketFactory());
+        assertSame(testConfig.getSSLSocketFactory(), testConfig.getSSLSocketFactory());
+        testConfig.setSSLSocketFactory(null);
+        assertNull(testConfig.getSSLSocketFactory());
+    }
+
     public void testAlias() {
         final RemoteService mockPoster = new HttpService() {
             @Override
@@ -639,8 +818,12 @@ public class HevoBasicTest extends AndroidTestCase {
         final BlockingQueue<AnalyticsMessages.EventDescription> eventsMessages = new LinkedBlockingQueue<>();
         final HDbAdapter mockAdapter = new HDbAdapter(getContext()) {
             @Override
-            public int addJSON(JSONObject j, boolean isAutomaticRecord) {
-                storedJsons.add(j);
+            public int addJSON(String j, boolean isAutomaticRecord) {
+                try {
+                    storedJsons.add(new JSONObject(j));
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock adapter", e);
+                }
                 return super.addJSON(j, isAutomaticRecord);
             }
         };
@@ -707,6 +890,139 @@ public class HevoBasicTest extends AndroidTestCase {
         assertNull(storedJsons.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
     }
 
+    public void testCallsQueuedBeforeInitialization() throws JSONException, InterruptedException {
+        final List<AnalyticsMessages.EventDescription> tracked = new ArrayList<AnalyticsMessages.EventDescription>();
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            public void eventsMessage(EventDescription eventDescription) {
+                if (!eventDescription.isAutomatic()) {
+                    tracked.add(eventDescription);
+                }
+            }
+        };
+        final List<Runnable> initialization = new ArrayList<Runnable>();
+        final Executor deferredExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                initialization.add(command);
+            }
+        };
+        final HevoAPI hevo = new HevoAPI(getContext(), mMockPreferences, false, deferredExecutor) {
+            @Override
+            AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+
+            @Override
+            boolean sendAppOpen() {
+                return false;
+            }
+        };
+
+        final String distinctId = "queued id " + System.currentTimeMillis();
+        final JSONObject properties = new JSONObject();
+        properties.put("step", 1);
+        hevo.track("first", properties);
+        properties.put("step", 2);
+        hevo.identify(distinctId);
+        hevo.track("second", properties);
+        final long trackedSeconds = System.currentTimeMillis() / 1000;
+        // Throws when replayed, which mustn't stop the calls after it or leave getters waiting
+        hevo.alias(null, null);
+        hevo.track("after failure");
+
+        assertTrue(tracked.isEmpty());
+        assertEquals(1, initialization.size());
+        // Queued events keep the time they were tracked at, not the time they are replayed at
+        Thread.sleep(2000);
+        initialization.get(0).run();
+        assertEquals(distinctId, hevo.getDistinctId());
+
+        final int firstIndex = indexOf(tracked, "first");
+        final int secondIndex = indexOf(tracked, "second");
+        assertTrue(firstIndex >= 0);
+        assertTrue(secondIndex > firstIndex);
+        final JSONObject first = tracked.get(firstIndex).getProperties();
+        final JSONObject second = tracked.get(secondIndex).getProperties();
+        assertEquals(1, first.getInt("step"));
+        assertEquals(2, second.getInt("step"));
+        assertFalse(distinctId.equals(first.getString("distinct_id")));
+        assertEquals(distinctId, second.getString("distinct_id"));
+        assertTrue(first.getLong("time") <= trackedSeconds);
+        assertTrue(second.getLong("time") <= trackedSeconds);
+        assertTrue(indexOf(tracked, "after failure") > secondIndex);
+
+        // Once initialized, calls go straight through
+        hevo.track("third");
+        assertEquals("third", tracked.get(tracked.size() - 1).getEventName());
+    }
+
+    public void testFailedInitialization() throws JSONException {
+        final List<AnalyticsMessages.EventDescription> tracked = new ArrayList<AnalyticsMessages.EventDescription>();
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            public void eventsMessage(EventDescription eventDescription) {
+                tracked.add(eventDescription);
+            }
+        };
+        final List<Runnable> initialization = new ArrayList<Runnable>();
+        final Executor deferredExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                initialization.add(command);
+            }
+        };
+        final HevoAPI hevo = new HevoAPI(getContext(), mMockPreferences, false, deferredExecutor) {
+            @Override
+            PersistentIdentity getPersistentIdentity(Context context, Future<SharedPreferences> referrerPreferences) {
+                throw new IllegalStateException("Initialization failure for testing");
+            }
+
+            @Override
+            AnalyticsMessages getAnalyticsMessages() {
+                return listener;
+            }
+        };
+
+        hevo.track("queued");
+        initialization.get(0).run();
+
+        // Calls neither throw nor wait, and nothing is tracked
+        hevo.track("after failure", new JSONObject().put("key", "value"));
+        hevo.identify("someone");
+        hevo.flush();
+        assertNull(hevo.getDistinctId());
+        assertTrue(hevo.hasOptedOutTracking());
+        assertEquals(0, hevo.getSuperProperties().length());
+        assertEquals(0, hevo.getPipelineStats().getEventsEnqueued());
+        assertTrue(tracked.isEmpty());
+    }
+
+    public void testWarmUpOpensEventStore() throws InterruptedException {
+        final BlockingQueue<String> opened = new LinkedBlockingQueue<String>();
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected EventStore makeEventStore(Context context) {
+                opened.add("store");
+                return new InMemoryEventStore(getConfig(context));
+            }
+        };
+
+        messages.warmUp();
+        assertEquals("store", opened.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertNull(opened.poll(1, TimeUnit.SECONDS));
+        messages.hardKill();
+    }
+
+    private static int indexOf(List<AnalyticsMessages.EventDescription> events, String eventName) {
+        for (int i = 0; i < events.size(); i++) {
+            if (eventName.equals(events.get(i).getEventName())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private Future<SharedPreferences> mMockPreferences;
 
     private static final int POLL_WAIT_SECONDS = 10;
@@ -0,0 +1,43 @@
+package com.hevodata.android;
+
+import android.test.AndroidTestCase;
+
+public class HistogramTest extends AndroidTestCase {
+
+    public void testBucketsCoverEveryValue() {
+        int previous = -1;
+        for (long value = 0; value < 100000; value++) {
+            final int bucket = Histogram.bucketFor(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(Histogram.lowerBound(bucket) <= value);
+            assertTrue(Histogram.upperBound(bucket) >= value);
+            previous = bucket;
+        }
+        assertEquals(Histogram.bucketFor(Long.MAX_VALUE), Histogram.bucketFor(1L << 50));
+    }
+
+    public void testPercentiles() {
+        final Histogram histogram = new Histogram("test", "us");
+        assertEquals(0, histogram.getValueAtPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        final long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(p50 >= 50 && p50 <= 50 * 1.125);
+        final long p99 = histogram.getValueAtPercentile(99);
+        assertTrue(p99 >= 99 && p99 <= 100);
+        assertEquals(100, histogram.getValueAtPercentile(100));
+
+        final PipelineStats.Distribution snapshot = histogram.snapshot();
+        assertEquals(101, snapshot.getCount());
+        assertEquals(5050, snapshot.getTotal());
+        assertEquals(p50, snapshot.getP50());
+        assertEquals(p99, snapshot.getP99());
+        assertEquals(100, snapshot.getMax());
+    }
+}
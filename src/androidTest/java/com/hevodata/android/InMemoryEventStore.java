@@ -0,0 +1,153 @@
+package com.hevodata.android;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * {@link EventStore} that keeps events on the heap, and so loses them when the process dies.
+ *
+ * <p>For tests and benchmarks of the rest of the pipeline, where the cost and
+ * state of a real store would get in the way. Behaves like {@link HDbAdapter}, including
+ * evicting automatic events first when over the configured MaximumQueueSize.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used
+ * by a single thread.
+ */
+class InMemoryEventStore implements EventStore {
+    private static final int BATCH_SIZE = 50;
+
+    public InMemoryEventStore(HevoConfig config) {
+        mConfig = config;
+        mRecords = new LinkedList<>();
+        mNextId = 1;
+    }
+
+    @Override
+    public int append(String event, boolean isAutomatic) {
+        mRecords.add(new Record(mNextId++, event, System.currentTimeMillis(), isAutomatic));
+        if (isAutomatic) {
+            mAutomaticCount++;
+        }
+
+        int excess = mRecords.size() - mConfig.getMaximumQueueSize();
+        excess -= evict(excess, true);
+        evict(excess, false);
+        return mRecords.size();
+    }
+
+    @Override
+    public EventBatch peekBatch(boolean includeAutomatic) {
+        final StringBuilder data = new StringBuilder("[");
+        int included = 0;
+        long lastId = -1;
+        for (final Record record : mRecords) {
+            if (included >= BATCH_SIZE) {
+                break;
+            }
+            if (includeAutomatic || !record.isAutomatic) {
+                if (included > 0) {
+                    data.append(',');
+                }
+                data.append(record.data);
+                lastId = record.id;
+                included++;
+            }
+        }
+
+        if (included == 0) {
+            return null;
+        }
+        data.append(']');
+        return new EventBatch(String.valueOf(lastId), data.toString(), included, depth(includeAutomatic), includeAutomatic);
+    }
+
+    @Override
+    public void ack(EventBatch batch) {
+        final long lastId = Long.parseLong(batch.getLastId());
+        final Iterator<Record> it = mRecords.iterator();
+        while (it.hasNext()) {
+            final Record record = it.next();
+            if (record.id > lastId) {
+                break;
+            }
+            if (batch.includesAutomatic() || !record.isAutomatic) {
+                remove(it, record);
+            }
+        }
+    }
+
+    @Override
+    public int depth(boolean includeAutomatic) {
+        return includeAutomatic ? mRecords.size() : mRecords.size() - mAutomaticCount;
+    }
+
+    @Override
+    public void purge() {
+        mRecords.clear();
+        mAutomaticCount = 0;
+    }
+
+    @Override
+    public int expire(long time, int maxRows) {
+        int removed = 0;
+        final Iterator<Record> it = mRecords.iterator();
+        while (removed < maxRows && it.hasNext()) {
+            final Record record = it.next();
+            if (record.createdAt > time) {
+                break;
+            }
+            remove(it, record);
+            removed++;
+        }
+        return removed;
+    }
+
+    @Override
+    public int vacuum(int maxPages) {
+        return 0;
+    }
+
+    @Override
+    public void deleteDB() {
+        purge();
+    }
+
+    private int evict(int maxRecords, boolean automaticOnly) {
+        int evicted = 0;
+        final Iterator<Record> it = mRecords.iterator();
+        while (evicted < maxRecords && it.hasNext()) {
+            final Record record = it.next();
+            if (!automaticOnly || record.isAutomatic) {
+                remove(it, record);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private void remove(Iterator<Record> it, Record record) {
+        it.remove();
+        if (record.isAutomatic) {
+            mAutomaticCount--;
+        }
+    }
+
+    private static class Record {
+        Record(long id, String data, long createdAt, boolean isAutomatic) {
+            this.id = id;
+            this.data = data;
+            this.createdAt = createdAt;
+            this.isAutomatic = isAutomatic;
+        }
+
+        final long id;
+        final String data;
+        final long createdAt;
+        final boolean isAutomatic;
+    }
+
+    private final HevoConfig mConfig;
+    private final LinkedList<Record> mRecords;
+    private long mNextId;
+    private int mAutomaticCount;
+}
@@ -0,0 +1,205 @@
+package com.hevodata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MappedPreferencesTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(new File(getContext().getFilesDir(), "com.hevodata.android.prefs"), TEST_PREFERENCES + ".kv");
+        mFile.delete();
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit().clear().commit();
+        super.tearDown();
+    }
+
+    public void testMigratesOnce() {
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putString("events_distinct_id", "migrated id")
+                .putBoolean("opt_out", true)
+                .putLong("time event", 1234L)
+                .commit();
+
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("migrated id", prefs.getString("events_distinct_id", null));
+        assertTrue(prefs.getBoolean("opt_out", false));
+        assertEquals(1234L, prefs.getLong("time event", 0));
+        prefs.edit().putString("events_distinct_id", "new id").commit();
+
+        // Later changes to the XML file are not copied again
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putString("events_distinct_id", "stale id")
+                .commit();
+        final SharedPreferences reopened = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("new id", reopened.getString("events_distinct_id", null));
+    }
+
+    public void testRestoresXmlWhenTurnedOff() throws Exception {
+        getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE).edit()
+                .putString("events_distinct_id", "old id")
+                .putBoolean("opt_out", false)
+                .putString("super_properties", "{\"old\":true}")
+                .commit();
+
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        prefs.edit()
+                .putString("events_distinct_id", "new id")
+                .putBoolean("opt_out", true)
+                .remove("super_properties")
+                .putLong("time event", 1234L)
+                .commit();
+
+        // Loading the XML file again, as when the option is turned off, brings the current values back into it
+        final SharedPreferences xml = new SharedPreferencesLoader().loadPreferences(getContext(), TEST_PREFERENCES, null, false).get();
+        assertEquals("new id", xml.getString("events_distinct_id", null));
+        assertTrue(xml.getBoolean("opt_out", false));
+        assertFalse(xml.contains("super_properties"));
+        assertEquals(1234L, xml.getLong("time event", 0));
+        assertFalse(mFile.exists());
+
+        // Turning it back on migrates them again
+        final SharedPreferences remapped = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("new id", remapped.getString("events_distinct_id", null));
+        assertTrue(remapped.getBoolean("opt_out", false));
+    }
+
+    public void testValuesSurviveReopening() {
+        final Set<String> set = new HashSet<String>();
+        set.add("a");
+        set.add("b");
+
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        prefs.edit()
+                .putString("string", "value")
+                .putInt("int", 1)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", set)
+                .putString("removed", "soon")
+                .apply();
+        prefs.edit().remove("removed").putInt("int", 2).apply();
+
+        final SharedPreferences reopened = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("value", reopened.getString("string", null));
+        assertEquals(2, reopened.getInt("int", 0));
+        assertEquals(Long.MAX_VALUE, reopened.getLong("long", 0));
+        assertEquals(1.5f, reopened.getFloat("float", 0));
+        assertTrue(reopened.getBoolean("boolean", false));
+        assertEquals(set, reopened.getStringSet("set", null));
+        assertFalse(reopened.contains("removed"));
+        assertEquals(6, reopened.getAll().size());
+
+        reopened.edit().clear().putString("after clear", "kept").commit();
+        final SharedPreferences cleared = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals(1, cleared.getAll().size());
+        assertEquals("kept", cleared.getString("after clear", null));
+    }
+
+    public void testRewritesWhenFull() {
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        final StringBuilder superProperties = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            superProperties.append(i);
+            prefs.edit().putString("super_properties", superProperties.toString()).putInt("count", i).apply();
+        }
+        // Only the latest values are kept, so the file stays well below the size of every write made
+        assertTrue(mFile.length() < 64 * 1024);
+
+        final SharedPreferences reopened = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals(superProperties.toString(), reopened.getString("super_properties", null));
+        assertEquals(999, reopened.getInt("count", 0));
+    }
+
+    public void testFailedWriteChangesNothing() {
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        prefs.edit().putString("kept", "before").putInt("count", 1).commit();
+
+        final StringBuilder tooLarge = new StringBuilder();
+        while (tooLarge.length() < 32 * 1024) {
+            tooLarge.append("too large ");
+        }
+        // The write needs a rewrite, which can't create its file in a read only directory
+        final File directory = mFile.getParentFile();
+        assertTrue(directory.setWritable(false));
+        try {
+            assertFalse(prefs.edit()
+                    .putString("kept", tooLarge.toString())
+                    .remove("count")
+                    .putBoolean("added", true)
+                    .commit());
+        } finally {
+            directory.setWritable(true);
+        }
+
+        assertEquals("before", prefs.getString("kept", null));
+        assertEquals(1, prefs.getInt("count", 0));
+        assertFalse(prefs.contains("added"));
+        assertEquals(2, prefs.getAll().size());
+
+        prefs.edit().putInt("count", 2).commit();
+        final SharedPreferences reopened = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("before", reopened.getString("kept", null));
+        assertEquals(2, reopened.getInt("count", 0));
+    }
+
+    public void testDropsTornWrite() throws IOException {
+        final SharedPreferences prefs = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        prefs.edit().putString("first", "kept").commit();
+        final long firstEnd = findEnd();
+        prefs.edit().putString("second", "torn").commit();
+
+        // Corrupt the payload of the last record, as if the write had not finished
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(firstEnd + 8);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+
+        final SharedPreferences reopened = new MappedPreferences(getContext(), TEST_PREFERENCES);
+        assertEquals("kept", reopened.getString("first", null));
+        assertFalse(reopened.contains("second"));
+
+        // New writes go where the torn one was
+        reopened.edit().putString("third", "written").commit();
+        assertEquals("written", new MappedPreferences(getContext(), TEST_PREFERENCES).getString("third", null));
+    }
+
+    // Offset just past the last complete record in the file
+    private long findEnd() throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            long position = 4;
+            raf.seek(position);
+            int length = raf.readInt();
+            while (length > 0) {
+                position += 8 + length;
+                raf.seek(position);
+                length = raf.readInt();
+            }
+            return position;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File mFile;
+
+    private static final String TEST_PREFERENCES = "MAPPED PREFERENCES TEST PREFS";
+}
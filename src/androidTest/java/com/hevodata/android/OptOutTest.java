@@ -247,10 +247,10 @@ public class OptOutTest extends AndroidTestCase {
             }
 
             @Override
-            public int addJSON(JSONObject j, boolean isAutomaticRecord) {
+            public int addJSON(String j, boolean isAutomaticRecord) {
                 int result = super.addJSON(j, isAutomaticRecord);
                 try {
-                    mStoredEvents.put(j.getString("event"));
+                    mStoredEvents.put(new JSONObject(j).getString("event"));
                 } catch (Exception e) {
                     throw new RuntimeException("Malformed data passed to test mock adapter", e);
                 }
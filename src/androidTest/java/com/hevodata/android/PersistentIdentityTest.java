@@ -9,7 +9,10 @@ import com.hevodata.android.SharedPreferencesLoader;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 public class PersistentIdentityTest extends AndroidTestCase {
@@ -107,6 +110,31 @@ public class PersistentIdentityTest extends AndroidTestCase {
         assertEquals("STORED PUSH ID", testPreferences.getString("push_id", "FAIL"));
     }
 
+    public void testReadsDontWaitForWriters() throws InterruptedException {
+        mPersistentIdentity.setOptOutTracking(true);
+        mPersistentIdentity.setEventsDistinctId("NEW EVENTS DISTINCT ID");
+
+        final BlockingQueue<String> reads = new LinkedBlockingQueue<String>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                reads.add(mPersistentIdentity.getEventsDistinctId());
+                reads.add(String.valueOf(mPersistentIdentity.getOptOutTracking()));
+            }
+        };
+
+        // As if a long write, say of super properties, was under way
+        synchronized (mPersistentIdentity) {
+            reader.start();
+            assertEquals("NEW EVENTS DISTINCT ID", reads.poll(1, TimeUnit.SECONDS));
+            assertEquals("true", reads.poll(1, TimeUnit.SECONDS));
+        }
+        reader.join();
+
+        mPersistentIdentity.setOptOutTracking(false);
+        assertFalse(mPersistentIdentity.getOptOutTracking());
+    }
+
     private PersistentIdentity mPersistentIdentity;
     private static final String TEST_PREFERENCES = "TEST PERSISTENT PROPERTIES PREFS";
     private static final String TEST_REFERRER_PREFERENCES  = "TEST REFERRER PREFS";
@@ -0,0 +1,54 @@
+package com.hevodata.android;
+
+import android.test.AndroidTestCase;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SessionMetadataTest extends AndroidTestCase {
+
+    public void testSequenceAndIds() {
+        final SessionMetadata sessionMetadata = new SessionMetadata();
+        final SessionMetadata.EventMetadata first = sessionMetadata.nextEvent();
+        final SessionMetadata.EventMetadata second = sessionMetadata.nextEvent();
+
+        assertEquals(0, first.getSequence());
+        assertEquals(1, second.getSequence());
+        assertEquals(first.getSessionId(), second.getSessionId());
+        assertEquals(24, first.getEventId().length());
+        assertTrue(first.getEventId().endsWith("00000000"));
+        assertTrue(second.getEventId().endsWith("00000001"));
+        assertEquals(first.getEventId().substring(0, 16), second.getEventId().substring(0, 16));
+
+        sessionMetadata.initSession();
+        final SessionMetadata.EventMetadata newSession = sessionMetadata.nextEvent();
+        assertEquals(0, newSession.getSequence());
+        assertFalse(first.getSessionId().equals(newSession.getSessionId()));
+        assertFalse(first.getEventId().equals(newSession.getEventId()));
+    }
+
+    public void testConcurrentEvents() throws InterruptedException {
+        final SessionMetadata sessionMetadata = new SessionMetadata();
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final int threads = 4;
+        final int eventsPerThread = 1000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < eventsPerThread; i++) {
+                        ids.add(sessionMetadata.nextEvent().getEventId());
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * eventsPerThread, ids.size());
+        assertEquals(threads * eventsPerThread, sessionMetadata.nextEvent().getSequence());
+    }
+}
@@ -0,0 +1,36 @@
+package com.hevodata.android;
+
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SharedPreferencesLoaderTest extends AndroidTestCase {
+
+    public void testLoadsEachFileOnce() throws ExecutionException, InterruptedException {
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final Future<SharedPreferences> first = loader.loadPreferences(getContext(), TEST_PREFERENCES, null);
+        final Future<SharedPreferences> again = loader.loadPreferences(getContext(), TEST_PREFERENCES, null);
+        final Future<SharedPreferences> other = loader.loadPreferences(getContext(), TEST_OTHER_PREFERENCES, null);
+        assertSame(first, again);
+        assertNotSame(first, other);
+        assertNotSame(first.get(), other.get());
+
+        final BlockingQueue<SharedPreferences> notified = new LinkedBlockingQueue<SharedPreferences>();
+        final Future<SharedPreferences> withListener = loader.loadPreferences(getContext(), TEST_PREFERENCES, new SharedPreferencesLoader.OnPrefsLoadedListener() {
+            @Override
+            public void onPrefsLoaded(SharedPreferences prefs) {
+                notified.add(prefs);
+            }
+        });
+        assertSame(first.get(), withListener.get());
+        assertSame(first.get(), notified.poll(1, TimeUnit.SECONDS));
+    }
+
+    private static final String TEST_PREFERENCES = "SHARED PREFERENCES LOADER TEST PREFS";
+    private static final String TEST_OTHER_PREFERENCES = "SHARED PREFERENCES LOADER TEST OTHER PREFS";
+}
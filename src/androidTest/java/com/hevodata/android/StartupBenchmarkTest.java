@@ -0,0 +1,352 @@
+package com.hevodata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.hevodata.android.util.HttpService;
+import com.hevodata.android.util.OfflineMode;
+import com.hevodata.android.util.RemoteService;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Benchmarks of what a new HevoAPI costs the app at startup: its creation, its first track
+ * and its first flush, each reported as the time the main thread was blocked and its
+ * allocations, and the time until the work finished in the background and the allocations
+ * of every thread. See {@link Benchmark#measureFirst}. Like {@link BenchmarkTest} these
+ * report to logcat rather than assert on timings.
+ *
+ * <p>Each is run with cold and warm preferences, and with an empty and a large event
+ * database. Cold preferences are files that have not been read in this process, copied
+ * from ones written beforehand since the system keeps every file it has read in memory.
+ * Warm ones have been loaded, as after {@link HevoAPI#preloadPreferences(Context)}.</p>
+ *
+ * <p>The instances are made the way getInstance makes them, but with their own preferences,
+ * database and worker, so the work shared by the whole process, like loading classes and
+ * starting the initialization thread, is only paid by the first run. For those, run a
+ * single test in a new process, for example
+ * <pre>
+ * ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.class=com.hevodata.android.StartupBenchmarkTest#testColdPreferencesEmptyDatabase
+ * adb logcat -s HevoAPI.Benchmark
+ * </pre>
+ */
+public class StartupBenchmarkTest extends AndroidTestCase {
+    private static final int RUNS = 3;
+    private static final int LARGE_DATABASE_EVENTS = 5000;
+    private static final int SUPER_PROPERTIES = 20;
+    private static final int TIMED_EVENTS = 20;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private static final String PREFS_PREFIX = "com.hevodata.android.StartupBenchmark.";
+    private static final String[] PREFS_NAMES = {"Referrer", "Stored", "TimeEvents", "Hevo"};
+
+    @Override
+    protected void setUp() throws Exception {
+        mConfig = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getBulkUploadLimit() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return "http://localhost/track";
+            }
+
+            @Override
+            public int getMaximumQueueSize() {
+                return Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() { return true; }
+        };
+        mProperties = new JSONObject();
+        mProperties.put("screen", "checkout");
+        mProperties.put("item_count", 3);
+        mProperties.put("total", 42.5);
+        mProperties.put("first_purchase", false);
+
+        writeTemplatePreferences();
+        mRun = 0;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (final File file : getPreferencesDir().listFiles()) {
+            if (file.getName().startsWith(PREFS_PREFIX)) {
+                file.delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    public void testColdPreferencesEmptyDatabase() throws Exception {
+        measureStartup("cold prefs, empty db", false, 0);
+    }
+
+    public void testWarmPreferencesEmptyDatabase() throws Exception {
+        measureStartup("warm prefs, empty db", true, 0);
+    }
+
+    public void testColdPreferencesLargeDatabase() throws Exception {
+        measureStartup("cold prefs, large db", false, LARGE_DATABASE_EVENTS);
+    }
+
+    public void testWarmPreferencesLargeDatabase() throws Exception {
+        measureStartup("warm prefs, large db", true, LARGE_DATABASE_EVENTS);
+    }
+
+    private void measureStartup(String scenario, boolean warmPreferences, int storedEvents) throws Exception {
+        for (int i = 0; i < RUNS; i++) {
+            final Startup startup = new Startup(warmPreferences, storedEvents);
+            try {
+                startup.measure(scenario);
+            } finally {
+                startup.close();
+            }
+        }
+    }
+
+    // One new instance, with its own copy of the preferences and its own database
+    private class Startup {
+        public Startup(boolean warmPreferences, int storedEvents) throws Exception {
+            mRun++;
+            mSuffix = "_" + mRun + "_" + System.nanoTime();
+            mLoader = new SharedPreferencesLoader();
+            for (final String name : PREFS_NAMES) {
+                copy(getPreferencesFile(PREFS_PREFIX + name), getPreferencesFile(PREFS_PREFIX + name + mSuffix));
+                // The loader keeps what it has loaded, so the instance gets these as they are
+                if (warmPreferences) {
+                    loadPreferences(name).get();
+                }
+            }
+
+            mStoredEvents = storedEvents;
+            mDrained = new CountDownLatch(1);
+            mStore = new HDbAdapter(getContext(), "StartupBenchmarkDB", mConfig) {
+                @Override
+                public int addJSON(String j, boolean isAutomaticRecord) {
+                    final int ret = super.addJSON(j, isAutomaticRecord);
+                    if (null != mTracked) {
+                        mTracked.countDown();
+                    }
+                    return ret;
+                }
+
+                @Override
+                public void ack(EventBatch batch) {
+                    super.ack(batch);
+                    if (depth(true) == 0) {
+                        mDrained.countDown();
+                    }
+                }
+            };
+            mStore.purge();
+            final String event = new JSONObject()
+                    .put("event", "stored event")
+                    .put("properties", mProperties)
+                    .toString();
+            for (int i = 0; i < storedEvents; i++) {
+                mStore.append(event, false);
+            }
+        }
+
+        public void measure(String scenario) throws Exception {
+            Log.i(Benchmark.LOGTAG, "Startup, " + scenario + ", " + mStoredEvents + " stored events");
+
+            Benchmark.measureFirst("HevoAPI.getInstance", new Benchmark.FirstOperation() {
+                @Override
+                public void start() {
+                    mApi = makeApi();
+                }
+
+                @Override
+                public void awaitDone() {
+                    assertNotNull(mApi.getDistinctId());
+                }
+            });
+
+            mTracked = new CountDownLatch(1);
+            Benchmark.measureFirst("HevoAPI.track", new Benchmark.FirstOperation() {
+                @Override
+                public void start() {
+                    mApi.track("benchmark event", mProperties);
+                }
+
+                @Override
+                public void awaitDone() throws InterruptedException {
+                    assertTrue(mTracked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                }
+            });
+
+            Benchmark.measureFirst("HevoAPI.flush", new Benchmark.FirstOperation() {
+                @Override
+                public void start() {
+                    mApi.flush();
+                }
+
+                @Override
+                public void awaitDone() throws InterruptedException {
+                    assertTrue(mDrained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                }
+            });
+        }
+
+        public void close() {
+            if (null != mMessages) {
+                mMessages.hardKill();
+            }
+            mInitializer.shutdown();
+            mStore.deleteDB();
+        }
+
+        private Future<SharedPreferences> loadPreferences(String name) {
+            return mLoader.loadPreferences(getContext(), PREFS_PREFIX + name + mSuffix, null);
+        }
+
+        // What getInstance does, with this run's preferences, store and poster
+        private HevoAPI makeApi() {
+            // Inside the subclass mConfig would be the field of AnalyticsMessages, not yet set
+            final HevoConfig config = mConfig;
+            return new HevoAPI(getContext(), loadPreferences(PREFS_NAMES[0]), false, mInitializer) {
+                @Override
+                PersistentIdentity getPersistentIdentity(Context context, Future<SharedPreferences> referrerPreferences) {
+                    return new PersistentIdentity(referrerPreferences, loadPreferences(PREFS_NAMES[1]),
+                            loadPreferences(PREFS_NAMES[2]), loadPreferences(PREFS_NAMES[3]));
+                }
+
+                @Override
+                AnalyticsMessages getAnalyticsMessages() {
+                    mMessages = new AnalyticsMessages(getContext()) {
+                        @Override
+                        protected EventStore makeEventStore(Context context) {
+                            return mStore;
+                        }
+
+                        @Override
+                        protected HevoConfig getConfig(Context context) {
+                            return config;
+                        }
+
+                        @Override
+                        protected RemoteService getPoster() {
+                            return mPoster;
+                        }
+                    };
+                    return mMessages;
+                }
+
+                @Override
+                boolean sendAppOpen() {
+                    return false;
+                }
+            };
+        }
+
+        private final SharedPreferencesLoader mLoader;
+        private final String mSuffix;
+        private final int mStoredEvents;
+        private final HDbAdapter mStore;
+        private final CountDownLatch mDrained;
+        private final ExecutorService mInitializer = Executors.newSingleThreadExecutor();
+        private volatile CountDownLatch mTracked;
+        private volatile AnalyticsMessages mMessages;
+        private volatile HevoAPI mApi;
+    }
+
+    // Preferences like those of an app that has been in use for a while
+    private void writeTemplatePreferences() throws Exception {
+        final JSONObject superProperties = new JSONObject();
+        for (int i = 0; i < SUPER_PROPERTIES; i++) {
+            superProperties.put("super property " + i, "value " + i);
+        }
+
+        getContext().getSharedPreferences(PREFS_PREFIX + PREFS_NAMES[0], Context.MODE_PRIVATE).edit()
+                .putString("utm_source", "benchmark")
+                .putString("utm_campaign", "startup")
+                .commit();
+        getContext().getSharedPreferences(PREFS_PREFIX + PREFS_NAMES[1], Context.MODE_PRIVATE).edit()
+                .putString("events_distinct_id", "startup benchmark user")
+                .putString("super_properties", superProperties.toString())
+                .putBoolean("opt_out", false)
+                .commit();
+        final SharedPreferences.Editor timeEvents = getContext().getSharedPreferences(PREFS_PREFIX + PREFS_NAMES[2], Context.MODE_PRIVATE).edit();
+        for (int i = 0; i < TIMED_EVENTS; i++) {
+            timeEvents.putLong("timed event " + i, System.currentTimeMillis());
+        }
+        timeEvents.commit();
+        getContext().getSharedPreferences(PREFS_PREFIX + PREFS_NAMES[3], Context.MODE_PRIVATE).edit()
+                .putBoolean("has_launched", true)
+                .putInt("latest_version_code", 1)
+                .commit();
+    }
+
+    private File getPreferencesDir() {
+        return new File(getContext().getApplicationInfo().dataDir, "shared_prefs");
+    }
+
+    private File getPreferencesFile(String name) {
+        return new File(getPreferencesDir(), name + ".xml");
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final InputStream in = new FileInputStream(from);
+        try {
+            final OutputStream out = new FileOutputStream(to);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private final RemoteService mPoster = new HttpService() {
+        @Override
+        public boolean isOnline(Context context, OfflineMode offlineMode) {
+            return true;
+        }
+
+        @Override
+        public void checkIsHevoBlocked(String host) {
+        }
+
+        @Override
+        public byte[] performRequest(String endpointUrl, String rawMessage, SSLSocketFactory socketFactory) {
+            return TestUtils.bytes("1\n");
+        }
+    };
+
+    private HevoConfig mConfig;
+    private JSONObject mProperties;
+    private int mRun;
+}
@@ -0,0 +1,211 @@
+package com.hevodata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.hevodata.android.util.HttpService;
+import com.hevodata.android.util.RemoteService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * End-to-end throughput benchmark against acceptance/ingest_server.py. Drives
+ * HevoAPI.track at fixed rates through the real worker, store and HttpService, and
+ * reports events/sec delivered, p50/p99 track-to-ack latency, bytes posted and retries
+ * to logcat with the tag HevoAPI.Benchmark.
+ *
+ * <p>Start the server on the host first, for example
+ * <pre>
+ * python acceptance/ingest_server.py --latency-ms 50 --failure-rate 0.02 --retry-after 1
+ * </pre>
+ * The emulator reaches the host at 10.0.2.2. When the server can't be reached the test
+ * logs that and does nothing, so it is harmless in regular test runs.
+ */
+public class ThroughputTest extends AndroidTestCase {
+    private static final String SERVER_URL = "http://10.0.2.2:8000";
+    private static final int[] RATES_PER_SECOND = {10, 100, 500};
+    private static final int DURATION_SECONDS = 10;
+    private static final long DRAIN_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        mMockPreferences = new TestUtils.EmptyPreferences(getContext());
+        mConfig = new HevoConfig(new Bundle(), getContext()) {
+            @Override
+            public int getFlushInterval() {
+                return 1000;
+            }
+
+            @Override
+            public String getEventsEndpoint() {
+                return SERVER_URL + "/track";
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() { return true; }
+        };
+    }
+
+    public void testFixedRates() throws Exception {
+        if (get("/reset") == null) {
+            Log.w(Benchmark.LOGTAG, "Ingest server is not reachable at " + SERVER_URL + ", skipping throughput benchmark");
+            return;
+        }
+
+        for (final int rate : RATES_PER_SECOND) {
+            run(rate, rate * DURATION_SECONDS);
+        }
+    }
+
+    private void run(int ratePerSecond, final int count) throws Exception {
+        get("/reset");
+        final long[] trackedAt = new long[count];
+        final long[] latencies = new long[count];
+        final AtomicInteger acked = new AtomicInteger();
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicLong bytesPosted = new AtomicLong();
+
+        final RemoteService poster = new HttpService() {
+            @Override
+            public byte[] performRequest(String endpointUrl, String rawMessage, SSLSocketFactory socketFactory)
+                    throws ServiceUnavailableException, IOException {
+                bytesPosted.addAndGet(rawMessage.getBytes("UTF-8").length);
+                final byte[] response;
+                try {
+                    response = super.performRequest(endpointUrl, rawMessage, socketFactory);
+                } catch (ServiceUnavailableException e) {
+                    retries.incrementAndGet();
+                    throw e;
+                } catch (IOException e) {
+                    retries.incrementAndGet();
+                    throw e;
+                }
+                if (response == null) {
+                    retries.incrementAndGet();
+                    return null;
+                }
+
+                final long now = SystemClock.elapsedRealtime();
+                try {
+                    final JSONArray events = new JSONArray(rawMessage);
+                    for (int i = 0; i < events.length(); i++) {
+                        final int seq = events.getJSONObject(i).getJSONObject("properties").optInt("bench_seq", -1);
+                        if (seq >= 0 && latencies[seq] == 0) {
+                            latencies[seq] = Math.max(1, now - trackedAt[seq]);
+                            acked.incrementAndGet();
+                        }
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException("Posted a batch that isn't a JSON array", e);
+                }
+                return response;
+            }
+        };
+
+        final HDbAdapter adapter = new HDbAdapter(getContext(), "ThroughputTestDB", mConfig);
+        adapter.purge();
+        // Inside the subclass mConfig would be the field of AnalyticsMessages, not yet set
+        final HevoConfig config = mConfig;
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext()) {
+            @Override
+            protected EventStore makeEventStore(Context context) {
+                return adapter;
+            }
+
+            @Override
+            protected HevoConfig getConfig(Context context) {
+                return config;
+            }
+
+            @Override
+            protected RemoteService getPoster() {
+                return poster;
+            }
+        };
+        final HevoAPI api = new TestUtils.CleanHevoAPI(getContext(), mMockPreferences) {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages() {
+                return messages;
+            }
+        };
+
+        final long periodNanos = 1000000000L / ratePerSecond;
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final long wait = start + i * periodNanos - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            final JSONObject properties = new JSONObject();
+            properties.put("bench_seq", i);
+            trackedAt[i] = SystemClock.elapsedRealtime();
+            api.track("throughput event", properties);
+        }
+        final long trackingDone = System.nanoTime();
+
+        final long deadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_MILLIS;
+        while (acked.get() < count && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(100);
+        }
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        messages.hardKill();
+
+        final long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        final int missing = count - acked.get();
+        // Events that were never acked sort first as zeroes, skip them
+        final long p50 = missing < count ? sorted[missing + (count - missing) / 2] : -1;
+        final long p99 = missing < count ? sorted[missing + (int) ((count - missing - 1) * 0.99)] : -1;
+
+        Log.i(Benchmark.LOGTAG, String.format(
+                "throughput %d/s: tracked %d in %.1fs, delivered %d (%.1f events/s), track-to-ack p50 %d ms p99 %d ms, " +
+                "%d bytes posted, %d retries",
+                ratePerSecond, count, (trackingDone - start) / 1e9, acked.get(), acked.get() / elapsedSeconds,
+                p50, p99, bytesPosted.get(), retries.get()));
+        Log.i(Benchmark.LOGTAG, "server stats " + get("/stats"));
+    }
+
+    private static String get(String path) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(SERVER_URL + path).openConnection();
+            connection.setConnectTimeout(2000);
+            connection.setReadTimeout(2000);
+            final InputStream in = connection.getInputStream();
+            final StringBuilder ret = new StringBuilder();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ret.append(new String(buffer, 0, read, "UTF-8"));
+            }
+            in.close();
+            return ret.toString();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private Future<SharedPreferences> mMockPreferences;
+    private HevoConfig mConfig;
+}
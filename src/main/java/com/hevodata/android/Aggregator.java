@@ -0,0 +1,150 @@
+package com.hevodata.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the values passed to HevoAPI.aggregate into one rollup per event name,
+ * distinct id and set of dimensions, until the end of the aggregation window.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used by a single thread,
+ * for us the Hevo worker thread.
+ */
+class Aggregator {
+
+    /**
+     * Count, sum, minimum and maximum of the values aggregated under the same key.
+     */
+    static class Rollup {
+        Rollup(AnalyticsMessages.AggregateDescription description) {
+            mEventName = description.getEventName();
+            mDistinctId = description.getDistinctId();
+            mDimensions = description.getDimensions();
+            mSessionMetadata = description.getSessionMetadata();
+            mMin = Double.POSITIVE_INFINITY;
+            mMax = Double.NEGATIVE_INFINITY;
+        }
+
+        void add(double value) {
+            mCount++;
+            mSum += value;
+            if (value < mMin) {
+                mMin = value;
+            }
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+        public String getEventName() {
+            return mEventName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getSum() {
+            return mSum;
+        }
+
+        public double getMin() {
+            return mMin;
+        }
+
+        public double getMax() {
+            return mMax;
+        }
+
+        public SessionMetadata getSessionMetadata() {
+            return mSessionMetadata;
+        }
+
+        /**
+         * @return the properties of the rolled up event, the dimensions together with the
+         * aggregated values and the bounds of the window in unix seconds
+         */
+        public JSONObject toProperties(long windowStartMillis, long windowEndMillis) throws JSONException {
+            final JSONObject ret = new JSONObject();
+            for (final Map.Entry<String, String> dimension : mDimensions.entrySet()) {
+                ret.put(dimension.getKey(), dimension.getValue());
+            }
+            ret.put("time", windowEndMillis / 1000);
+            ret.put("distinct_id", mDistinctId);
+            ret.put("$count", mCount);
+            ret.put("$sum", mSum);
+            ret.put("$min", mMin);
+            ret.put("$max", mMax);
+            ret.put("$window_start_sec", windowStartMillis / 1000);
+            ret.put("$window_end_sec", windowEndMillis / 1000);
+            return ret;
+        }
+
+        private final String mEventName;
+        private final String mDistinctId;
+        private final Map<String, String> mDimensions;
+        private final SessionMetadata mSessionMetadata;
+        private long mCount;
+        private double mSum;
+        private double mMin;
+        private double mMax;
+    }
+
+    public boolean isEmpty() {
+        return mRollups.isEmpty();
+    }
+
+    public void add(AnalyticsMessages.AggregateDescription description) {
+        if (mRollups.isEmpty()) {
+            mWindowStart = System.currentTimeMillis();
+        }
+
+        final String key = keyFor(description);
+        Rollup rollup = mRollups.get(key);
+        if (null == rollup) {
+            rollup = new Rollup(description);
+            mRollups.put(key, rollup);
+        }
+        rollup.add(description.getValue());
+    }
+
+    /**
+     * @return when the first value of the current window was added
+     */
+    public long getWindowStart() {
+        return mWindowStart;
+    }
+
+    /**
+     * Ends the current window.
+     *
+     * @return its rollups, in the order their keys were first seen
+     */
+    public List<Rollup> drain() {
+        final List<Rollup> ret = new ArrayList<Rollup>(mRollups.values());
+        mRollups.clear();
+        return ret;
+    }
+
+    // Dimensions are sorted by the time they get here, so equal sets give equal keys.
+    private String keyFor(AnalyticsMessages.AggregateDescription description) {
+        final StringBuilder key = mKeyBuilder;
+        key.setLength(0);
+        key.append(description.getEventName()).append(KEY_SEPARATOR).append(description.getDistinctId());
+        for (final Map.Entry<String, String> dimension : description.getDimensions().entrySet()) {
+            key.append(KEY_SEPARATOR).append(dimension.getKey()).append(KEY_SEPARATOR).append(dimension.getValue());
+        }
+        return key.toString();
+    }
+
+    private final Map<String, Rollup> mRollups = new LinkedHashMap<String, Rollup>();
+    private final StringBuilder mKeyBuilder = new StringBuilder();
+    private long mWindowStart;
+
+    private static final char KEY_SEPARATOR = '\u0000';
+}
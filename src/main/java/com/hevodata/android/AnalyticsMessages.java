@@ -24,6 +24,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.SSLSocketFactory;
@@ -80,12 +81,30 @@ class AnalyticsMessages {
     }
 
     public void eventsMessage(final EventDescription eventDescription) {
+        mCounters.eventsEnqueued.incrementAndGet();
         final Message m = Message.obtain();
         m.what = ENQUEUE_EVENTS;
         m.obj = eventDescription;
         mWorker.runMessage(m);
     }
 
+    public void aggregateMessage(final AggregateDescription aggregateDescription) {
+        final Message m = Message.obtain();
+        m.what = AGGREGATE_EVENT;
+        m.obj = aggregateDescription;
+        mWorker.runMessage(m);
+    }
+
+    /**
+     * Ends the current aggregation window early, queuing its rolled up events.
+     */
+    public void flushAggregates() {
+        final Message m = Message.obtain();
+        m.what = FLUSH_AGGREGATES;
+
+        mWorker.runMessage(m);
+    }
+
     public void postToServer() {
         final Message m = Message.obtain();
         m.what = FLUSH_QUEUE;
@@ -100,6 +119,30 @@ class AnalyticsMessages {
         mWorker.runMessage(m);
     }
 
+    public PipelineStats getPipelineStats() {
+        return mCounters.snapshot();
+    }
+
+    /**
+     * Logs the worker's timing histograms at INFO level, for diagnosis.
+     */
+    public void dumpHistograms() {
+        final Message m = Message.obtain();
+        m.what = DUMP_HISTOGRAMS;
+
+        mWorker.runMessage(m);
+    }
+
+    /**
+     * Has the worker open the event store now, rather than when the first event arrives.
+     */
+    public void warmUp() {
+        final Message m = Message.obtain();
+        m.what = WARM_UP;
+
+        mWorker.runMessage(m);
+    }
+
     public void hardKill() {
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
@@ -107,6 +150,29 @@ class AnalyticsMessages {
         mWorker.runMessage(m);
     }
 
+    // The number of bytes s takes in UTF-8, without encoding a copy of it. Unpaired surrogates
+    // count one byte, for the '?' they are encoded as.
+    static int utf8Length(String s) {
+        final int length = s.length();
+        int ret = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                ret += 1;
+            } else if (c < 0x800) {
+                ret += 2;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                ret += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                ret += 4;
+                i++;
+            } else {
+                ret += 1;
+            }
+        }
+        return ret;
+    }
+
     /////////////////////////////////////////////////////////
     // For testing, to allow for Mocking.
 
@@ -114,6 +180,13 @@ class AnalyticsMessages {
         return mWorker.isDead();
     }
 
+    protected EventStore makeEventStore(Context context) {
+        if (HevoConfig.EVENT_STORE_MAPPED_LOG.equals(mConfig.getEventStore())) {
+            return MappedEventStore.getInstance(context);
+        }
+        return makeDbAdapter(context);
+    }
+
     protected HDbAdapter makeDbAdapter(Context context) {
         return HDbAdapter.getInstance(context);
     }
@@ -130,12 +203,27 @@ class AnalyticsMessages {
     static class EventDescription {
         EventDescription(
                 String eventName, JSONObject properties,
-                boolean isAutomatic, JSONObject sessionMetada) {
+                boolean isAutomatic, SessionMetadata.EventMetadata sessionMetada) {
+            this(eventName, properties, null, isAutomatic, sessionMetada);
+        }
+
+        EventDescription(
+                String eventName, JSONObject properties, EventBuilder typedProperties,
+                boolean isAutomatic, SessionMetadata.EventMetadata sessionMetada) {
+            this(eventName, properties, typedProperties, null, isAutomatic, sessionMetada);
+        }
+
+        EventDescription(
+                String eventName, JSONObject properties, EventBuilder typedProperties, ReferrerProperties referrer,
+                boolean isAutomatic, SessionMetadata.EventMetadata sessionMetada) {
 
             mEventName = eventName;
             mProperties = properties;
+            mTypedProperties = typedProperties;
+            mReferrer = referrer;
             mIsAutomatic = isAutomatic;
             mSessionMetadata = sessionMetada;
+            mCreatedNanos = System.nanoTime();
         }
 
         public String getEventName() {
@@ -146,28 +234,125 @@ class AnalyticsMessages {
             return mProperties;
         }
 
-        public JSONObject getSessionMetadata() {
+        /**
+         * @return properties set through an EventBuilder, which take precedence over
+         * getProperties(), or null
+         */
+        public EventBuilder getTypedProperties() {
+            return mTypedProperties;
+        }
+
+        /**
+         * @return the install referrer properties, which any other property of the same
+         * name takes precedence over, or null
+         */
+        public ReferrerProperties getReferrer() {
+            return mReferrer;
+        }
+
+        public SessionMetadata.EventMetadata getEventMetadata() {
             return mSessionMetadata;
         }
 
+        /**
+         * @return a new JSONObject holding the session metadata, which the worker writes
+         * without creating
+         */
+        public JSONObject getSessionMetadata() {
+            return mSessionMetadata.toJSONObject();
+        }
+
         public boolean isAutomatic() {
             return mIsAutomatic;
         }
 
+        public long getCreatedNanos() {
+            return mCreatedNanos;
+        }
+
         private final String mEventName;
         private final JSONObject mProperties;
-        private final JSONObject mSessionMetadata;
+        private final EventBuilder mTypedProperties;
+        private final ReferrerProperties mReferrer;
+        private final SessionMetadata.EventMetadata mSessionMetadata;
         private final boolean mIsAutomatic;
+        private final long mCreatedNanos;
+    }
+
+    static class AggregateDescription {
+        /**
+         * @param dimensions sorted by key, and not changed afterwards
+         */
+        AggregateDescription(String eventName, Map<String, String> dimensions, double value,
+                             String distinctId, SessionMetadata sessionMetadata) {
+            mEventName = eventName;
+            mDimensions = dimensions;
+            mValue = value;
+            mDistinctId = distinctId;
+            mSessionMetadata = sessionMetadata;
+        }
+
+        public String getEventName() {
+            return mEventName;
+        }
+
+        public Map<String, String> getDimensions() {
+            return mDimensions;
+        }
+
+        public double getValue() {
+            return mValue;
+        }
+
+        public String getDistinctId() {
+            return mDistinctId;
+        }
+
+        public SessionMetadata getSessionMetadata() {
+            return mSessionMetadata;
+        }
+
+        private final String mEventName;
+        private final Map<String, String> mDimensions;
+        private final double mValue;
+        private final String mDistinctId;
+        private final SessionMetadata mSessionMetadata;
     }
 
     // Sends a message if and only if we are running with Hevo Message log enabled.
-    // Will be called from the Hevo thread.
+    // Will be called from the Hevo thread. Callers passing anything but a constant should
+    // use the format variants, or check HLog.isLoggable first, so that nothing is built
+    // for messages that won't be logged.
     private void logAboutMessageToHevo(String message) {
-        HLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        if (HLog.isLoggable(HLog.VERBOSE)) {
+            HLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")");
+        }
     }
 
     private void logAboutMessageToHevo(String message, Throwable e) {
-        HLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        if (HLog.isLoggable(HLog.VERBOSE)) {
+            HLog.v(LOGTAG, message + " (Thread " + Thread.currentThread().getId() + ")", e);
+        }
+    }
+
+    private void logAboutMessageToHevo(String format, Object arg) {
+        if (HLog.isLoggable(HLog.VERBOSE)) {
+            logAboutMessageToHevo(String.format(format, arg));
+        }
+    }
+
+    // Numbers are only boxed when the message is logged. Takes int arguments too, which
+    // widen to long rather than box to Integer when picking the overload.
+    private void logAboutMessageToHevo(String format, long arg) {
+        if (HLog.isLoggable(HLog.VERBOSE)) {
+            logAboutMessageToHevo(String.format(format, arg));
+        }
+    }
+
+    private void logAboutMessageToHevo(String format, Object arg1, Object arg2) {
+        if (HLog.isLoggable(HLog.VERBOSE)) {
+            logAboutMessageToHevo(String.format(format, arg1, arg2));
+        }
     }
 
     // Worker will manage the (at most single) IO thread associated with
@@ -188,7 +373,7 @@ class AnalyticsMessages {
             synchronized(mHandlerLock) {
                 if (mHandler == null) {
                     // We died under suspicious circumstances. Don't try to send any more events.
-                    logAboutMessageToHevo("Dead hevo worker dropping a message: " + msg.what);
+                    logAboutMessageToHevo("Dead hevo worker dropping a message: %d", msg.what);
                 } else {
                     mHandler.sendMessage(msg);
                 }
@@ -214,33 +399,67 @@ class AnalyticsMessages {
             @Override
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
-                    mDbAdapter = makeDbAdapter(mContext);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration());
+                    mDbAdapter = makeEventStore(mContext);
+                    // Expire old records behind whatever is already queued, rather than
+                    // making the first message wait on a potentially huge delete.
+                    sendEmptyMessage(EXPIRE_EVENTS);
                 }
 
                 try {
-                    int returnCode = HDbAdapter.DB_UNDEFINED_CODE;
+                    int returnCode = EventStore.DB_UNDEFINED_CODE;
 
                     if (msg.what == ENQUEUE_EVENTS) {
                         final EventDescription eventDescription = (EventDescription) msg.obj;
                         try {
-                            final JSONObject message = prepareEventObject(eventDescription);
+                            final String message = serializeEvent(eventDescription);
                             logAboutMessageToHevo("Queuing event for sending later");
-                            logAboutMessageToHevo("    " + message.toString());
+                            logAboutMessageToHevo("    %s", message);
 
                             if (!mConfig.getCaptureAutomaticEvents()) {
+                                mCounters.eventsDropped.incrementAndGet();
                                 return;
                             }
-                            returnCode = mDbAdapter.addJSON(message, eventDescription.isAutomatic());
+                            final long insertStart = System.nanoTime();
+                            returnCode = mDbAdapter.append(message, eventDescription.isAutomatic());
+                            final long insertEnd = System.nanoTime();
+                            mCounters.insertLatency.record((insertEnd - insertStart) / 1000);
+                            mEnqueueToInsert.record((insertEnd - eventDescription.getCreatedNanos()) / 1000);
+                            if (returnCode >= 0) {
+                                mCounters.eventsStored.incrementAndGet();
+                                mCounters.queueDepth.set(returnCode);
+                            } else {
+                                mCounters.eventsDropped.incrementAndGet();
+                            }
                         } catch (final JSONException e) {
                             HLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
                         }
+                    } else if (msg.what == AGGREGATE_EVENT) {
+                        if (mAggregator.isEmpty() && mConfig.getAggregationWindow() >= 0) {
+                            sendEmptyMessageDelayed(FLUSH_AGGREGATES, mConfig.getAggregationWindow());
+                        }
+                        mAggregator.add((AggregateDescription) msg.obj);
+                    } else if (msg.what == FLUSH_AGGREGATES) {
+                        removeMessages(FLUSH_AGGREGATES);
+                        returnCode = storeAggregates();
                     } else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToHevo("Flushing queue due to scheduled or forced flush");
                         updateFlushFrequency();
                         sendAllData(mDbAdapter);
                     } else if (msg.what == EMPTY_QUEUES) {
-                        mDbAdapter.cleanupAllEvents();
+                        mDbAdapter.purge();
+                    } else if (msg.what == EXPIRE_EVENTS) {
+                        expireEvents();
+                    } else if (msg.what == VACUUM_DB) {
+                        vacuumDb();
+                    } else if (msg.what == WARM_UP) {
+                        // Opening the store happened above, this makes sure it's read from disk too
+                        mDbAdapter.depth(true);
+                    } else if (msg.what == DUMP_HISTOGRAMS) {
+                        HLog.i(LOGTAG, mEnqueueToInsert.dump());
+                        HLog.i(LOGTAG, mCounters.insertLatency.dump());
+                        HLog.i(LOGTAG, mBatchBuildDuration.dump());
+                        HLog.i(LOGTAG, mCounters.batchSize.dump());
+                        HLog.i(LOGTAG, mCounters.uploadLatency.dump());
                     } else if (msg.what == KILL_WORKER) {
                         HLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
@@ -253,8 +472,8 @@ class AnalyticsMessages {
                     }
 
                     ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == HDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0) {
-                        logAboutMessageToHevo("Flushing queue due to bulk upload limit (" + returnCode + ") for project ");
+                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == EventStore.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0) {
+                        logAboutMessageToHevo("Flushing queue due to bulk upload limit (%d)", returnCode);
                         updateFlushFrequency();
                         sendAllData(mDbAdapter);
                     } else if (returnCode > 0 && !hasMessages(FLUSH_QUEUE)) {
@@ -264,7 +483,9 @@ class AnalyticsMessages {
                         // a flush right here, so we may end up with two flushes
                         // in our queue, but we're OK with that.
 
-                        logAboutMessageToHevo("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
+                        if (HLog.isLoggable(HLog.VERBOSE)) {
+                            logAboutMessageToHevo("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
+                        }
                         if (mFlushInterval >= 0) {
                             final Message flushMessage = Message.obtain();
                             flushMessage.what = FLUSH_QUEUE;
@@ -285,11 +506,34 @@ class AnalyticsMessages {
                 }
             }// handleMessage
 
+            // Deletes one bounded chunk of expired events. If the chunk was full there may be
+            // more, so we go to the back of the queue and continue once pending work is done.
+            private void expireEvents() {
+                final long expiredBefore = System.currentTimeMillis() - mConfig.getDataExpiration();
+                final int deleted = mDbAdapter.expire(expiredBefore, EXPIRE_CHUNK_SIZE);
+                if (deleted >= EXPIRE_CHUNK_SIZE) {
+                    logAboutMessageToHevo("Expired %d events, more may remain", deleted);
+                    sendEmptyMessage(EXPIRE_EVENTS);
+                } else {
+                    removeMessages(EXPIRE_EVENTS);
+                    sendEmptyMessage(VACUUM_DB);
+                    sendEmptyMessageDelayed(EXPIRE_EVENTS, EXPIRE_INTERVAL);
+                }
+            }
+
+            // Same idea as expireEvents, for returning free pages to the file system.
+            private void vacuumDb() {
+                final int released = mDbAdapter.vacuum(VACUUM_CHUNK_PAGES);
+                if (released >= VACUUM_CHUNK_PAGES) {
+                    sendEmptyMessage(VACUUM_DB);
+                }
+            }
+
             protected long getTrackEngageRetryAfter() {
                 return mTrackEngageRetryAfter;
             }
 
-            private void sendAllData(HDbAdapter dbAdapter) {
+            private void sendAllData(EventStore dbAdapter) {
                 final RemoteService poster = getPoster();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToHevo("Not flushing data to Hevo because the device is not connected to the internet.");
@@ -304,42 +548,44 @@ class AnalyticsMessages {
                 sendData(dbAdapter, finalUrl);
             }
 
-            private void sendData(HDbAdapter dbAdapter, String url) {
+            private void sendData(EventStore dbAdapter, String url) {
                 final RemoteService poster = getPoster();
                 boolean includeAutomaticEvents = mConfig.getCaptureAutomaticEvents();
-                String[] eventsData = dbAdapter.generateDataString(includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
-                }
+                EventBatch batch = peekBatch(dbAdapter, includeAutomaticEvents);
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                while (batch != null && batch.getDepth() > 0) {
+                    final String rawMessage = batch.getData();
+                    mCounters.batchSize.record(batch.getCount());
 
                     boolean deleteEvents = true;
+                    boolean sent = false;
                     byte[] response;
+                    final long uploadStart = System.nanoTime();
                     try {
                         final SSLSocketFactory socketFactory = mConfig.getSSLSocketFactory();
                         response = poster.performRequest(url, rawMessage, socketFactory);
                         if (null == response) {
                             deleteEvents = false;
-                            logAboutMessageToHevo("Response was null, unexpected failure posting to " + url + ".");
+                            logAboutMessageToHevo("Response was null, unexpected failure posting to %s.", url);
                         } else {
                             deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
+                            sent = true;
+                            mCounters.bytesSent.addAndGet(utf8Length(rawMessage));
                             if (mFailedRetries > 0) {
                                 mFailedRetries = 0;
                                 removeMessages(FLUSH_QUEUE);
                             }
 
-                            logAboutMessageToHevo("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToHevo("Response was " + parsedResponse);
+                            if (HLog.isLoggable(HLog.VERBOSE)) {
+                                String parsedResponse;
+                                try {
+                                    parsedResponse = new String(response, "UTF-8");
+                                } catch (UnsupportedEncodingException e) {
+                                    throw new RuntimeException("UTF not supported on this platform?", e);
+                                }
+                                logAboutMessageToHevo("Successfully posted to %s: \n%s", url, rawMessage);
+                                logAboutMessageToHevo("Response was %s", parsedResponse);
+                            }
                         }
                     } catch (final OutOfMemoryError e) {
                         HLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
@@ -357,10 +603,23 @@ class AnalyticsMessages {
                         deleteEvents = false;
                     }
 
+                    final long uploadNanos = System.nanoTime() - uploadStart;
+                    mCounters.uploadLatency.record(uploadNanos / 1000);
+                    if (!sent) {
+                        mCounters.failedFlushes.incrementAndGet();
+                    }
+
                     if (deleteEvents) {
                         logAboutMessageToHevo("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, includeAutomaticEvents);
+                        dbAdapter.ack(batch);
+                        if (sent) {
+                            mCounters.eventsSent.addAndGet(batch.getCount());
+                        } else {
+                            mCounters.eventsDropped.addAndGet(batch.getCount());
+                        }
+                        mCounters.queueDepth.set(Math.max(0, batch.getDepth() - batch.getCount()));
                     } else {
+                        mCounters.retries.incrementAndGet();
                         removeMessages(FLUSH_QUEUE);
                         mTrackEngageRetryAfter = Math.max((long)Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
                         mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
@@ -368,17 +627,21 @@ class AnalyticsMessages {
                         flushMessage.what = FLUSH_QUEUE;
                         sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
                         mFailedRetries++;
-                        logAboutMessageToHevo("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                        logAboutMessageToHevo("Retrying this batch of events in %d ms", mTrackEngageRetryAfter);
                         break;
                     }
 
-                    eventsData = dbAdapter.generateDataString(mConfig.getCaptureAutomaticEvents());
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
-                    }
+                    batch = peekBatch(dbAdapter, mConfig.getCaptureAutomaticEvents());
                 }
             }
 
+            private EventBatch peekBatch(EventStore dbAdapter, boolean includeAutomaticEvents) {
+                final long start = System.nanoTime();
+                final EventBatch batch = dbAdapter.peekBatch(includeAutomaticEvents);
+                mBatchBuildDuration.record((System.nanoTime() - start) / 1000);
+                return batch;
+            }
+
             private JSONObject getDefaultEventProperties(String eventName) throws JSONException {
                 final JSONObject ret = new JSONObject();
                 if (!eventName.equals(ReservedEvents.INSTALLATION)) {
@@ -413,13 +676,8 @@ class AnalyticsMessages {
                     ret.put("$app_build_number", applicationVersionCode);
                 }
 
-                final Boolean hasNFC = mSystemInformation.hasNFC();
-                if (null != hasNFC)
-                    ret.put("$has_nfc", hasNFC.booleanValue());
-
-                final Boolean hasTelephony = mSystemInformation.hasTelephony();
-                if (null != hasTelephony)
-                    ret.put("$has_telephone", hasTelephony.booleanValue());
+                ret.put("$has_nfc", mSystemInformation.hasNFC());
+                ret.put("$has_telephone", mSystemInformation.hasTelephony());
 
                 final String carrier = mSystemInformation.getCurrentNetworkOperator();
                 if (null != carrier)
@@ -440,17 +698,66 @@ class AnalyticsMessages {
                 return ret;
             }
 
+            // Queues one event for each rollup of the aggregation window that just ended
+            private int storeAggregates() {
+                int returnCode = EventStore.DB_UNDEFINED_CODE;
+                if (mAggregator.isEmpty()) {
+                    return returnCode;
+                }
+
+                final long windowStart = mAggregator.getWindowStart();
+                final long windowEnd = System.currentTimeMillis();
+                final List<Aggregator.Rollup> rollups = mAggregator.drain();
+                logAboutMessageToHevo("Queuing %d aggregated events", rollups.size());
+                for (final Aggregator.Rollup rollup : rollups) {
+                    try {
+                        final String message = mEventWriter.write(rollup.getEventName(),
+                                rollup.toProperties(windowStart, windowEnd), rollup.getSessionMetadata().nextEvent());
+                        returnCode = mDbAdapter.append(message, false);
+                        if (returnCode >= 0) {
+                            mCounters.eventsStored.incrementAndGet();
+                            mCounters.queueDepth.set(returnCode);
+                        } else {
+                            mCounters.eventsDropped.incrementAndGet();
+                        }
+                    } catch (final JSONException e) {
+                        HLog.e(LOGTAG, "Exception storing aggregated event " + rollup.getEventName(), e);
+                    }
+                }
+                return returnCode;
+            }
+
+            private String serializeEvent(EventDescription eventDescription) throws JSONException {
+                if (ReservedEvents.INSTALLATION.equals(eventDescription.getEventName())) {
+                    // Sent once, and merged with the default properties
+                    return prepareEventObject(eventDescription).toString();
+                }
+                return mEventWriter.write(eventDescription.getEventName(), eventDescription.getProperties(),
+                        eventDescription.getTypedProperties(), eventDescription.getReferrer(),
+                        eventDescription.getEventMetadata());
+            }
+
             private JSONObject prepareEventObject(EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
                 final JSONObject eventProperties = eventDescription.getProperties();
                 String eventName = eventDescription.getEventName();
                 final JSONObject sendProperties = getDefaultEventProperties(eventName);
+                final ReferrerProperties referrer = eventDescription.getReferrer();
+                if (referrer != null) {
+                    for (int i = 0; i < referrer.size(); i++) {
+                        sendProperties.put(referrer.keyAt(i), referrer.getProperties().get(referrer.keyAt(i)));
+                    }
+                }
                 if (eventProperties != null) {
                     for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
                         final String key = (String) iter.next();
                         sendProperties.put(key, eventProperties.get(key));
                     }
                 }
+                final EventBuilder typedProperties = eventDescription.getTypedProperties();
+                if (typedProperties != null) {
+                    typedProperties.putAll(sendProperties);
+                }
                 sendProperties.put("$h_metadata", eventDescription.getSessionMetadata());
 
                 eventObj.put("event", eventName);
@@ -458,8 +765,13 @@ class AnalyticsMessages {
                 return eventObj;
             }
 
-            private HDbAdapter mDbAdapter;
+            private EventStore mDbAdapter;
             private final long mFlushInterval;
+            private final EventWriter mEventWriter = new EventWriter();
+            private final Aggregator mAggregator = new Aggregator();
+            // Timings in microseconds, only touched from this thread
+            private final Histogram mEnqueueToInsert = new Histogram("Enqueue to insert", "us");
+            private final Histogram mBatchBuildDuration = new Histogram("Batch build duration", "us");
             private long mTrackEngageRetryAfter;
             private int mFailedRetries;
         }// AnalyticsMessageHandler
@@ -474,7 +786,7 @@ class AnalyticsMessages {
                 mAveFlushFrequency = totalFlushTime / newFlushCount;
 
                 final long seconds = mAveFlushFrequency / 1000;
-                logAboutMessageToHevo("Average send frequency approximately " + seconds + " seconds.");
+                logAboutMessageToHevo("Average send frequency approximately %d seconds.", seconds);
             }
 
             mLastFlushTime = now;
@@ -495,6 +807,7 @@ class AnalyticsMessages {
     /////////////////////////////////////////////////////////
 
     // Used across thread boundaries
+    private final PipelineCounters mCounters = new PipelineCounters();
     private final Worker mWorker;
     protected final Context mContext;
     protected final HevoConfig mConfig;
@@ -504,6 +817,16 @@ class AnalyticsMessages {
     private static final int FLUSH_QUEUE = 2; // push given JSON message to events DB
     private static final int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static final int EMPTY_QUEUES = 6; // Remove any local (and pending to be flushed) events or people updates from the db
+    private static final int EXPIRE_EVENTS = 7; // Remove a chunk of events older than DataExpiration from the db
+    private static final int VACUUM_DB = 8; // Return a chunk of free db pages to the file system
+    private static final int DUMP_HISTOGRAMS = 9; // Log the worker's timing histograms
+    private static final int AGGREGATE_EVENT = 10; // Add a value to the current aggregation window
+    private static final int FLUSH_AGGREGATES = 11; // Queue the rolled up events of the current aggregation window
+    private static final int WARM_UP = 12; // Open the event store ahead of the first event
+
+    private static final int EXPIRE_CHUNK_SIZE = 500; // rows deleted per EXPIRE_EVENTS message
+    private static final int VACUUM_CHUNK_PAGES = 128; // pages released per VACUUM_DB message
+    private static final long EXPIRE_INTERVAL = 60 * 60 * 1000; // one hour between expiry passes
 
     private static final String LOGTAG = "HevoAPI.Messages";
 
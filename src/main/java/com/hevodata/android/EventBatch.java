@@ -0,0 +1,52 @@
+package com.hevodata.android;
+
+/**
+ * A batch of queued events, read from an {@link EventStore} but not yet acknowledged.
+ */
+final class EventBatch {
+    EventBatch(String lastId, String data, int count, int depth, boolean includesAutomatic) {
+        mLastId = lastId;
+        mData = data;
+        mCount = count;
+        mDepth = depth;
+        mIncludesAutomatic = includesAutomatic;
+    }
+
+    /**
+     * @return the store specific id of the last record in the batch
+     */
+    public String getLastId() {
+        return mLastId;
+    }
+
+    /**
+     * @return the events of the batch, as a JSON array string ready to be posted
+     */
+    public String getData() {
+        return mData;
+    }
+
+    /**
+     * @return the number of events in the batch
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of records in the queue when the batch was read, including the batch itself
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    public boolean includesAutomatic() {
+        return mIncludesAutomatic;
+    }
+
+    private final String mLastId;
+    private final String mData;
+    private final int mCount;
+    private final int mDepth;
+    private final boolean mIncludesAutomatic;
+}
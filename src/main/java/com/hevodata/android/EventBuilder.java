@@ -0,0 +1,253 @@
+package com.hevodata.android;
+
+import com.hevodata.android.util.HLog;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An event with typed properties, for tracking events at a high rate.
+ *
+ * <p>Numbers and booleans are kept in primitive arrays rather than boxed into a Map or
+ * a JSONObject, and are written straight to the event JSON on the Hevo worker thread.
+ * A builder can be reused for the next event once it has been passed to
+ * {@link HevoAPI#track(EventBuilder)}, which takes a copy of it.
+ *
+ * <pre>
+ * {@code
+ *     final EventBuilder frame = new EventBuilder("Frame Rendered");
+ *     ...
+ *     frame.clear();
+ *     hevo.track(frame.put("duration_ms", duration).put("dropped", dropped));
+ * }
+ * </pre>
+ *
+ * <p>Setting a property that was already set replaces its value. EventBuilder is not
+ * thread-safe.
+ */
+public class EventBuilder {
+    /**
+     * @param eventName the name of the event to send
+     */
+    public EventBuilder(String eventName) {
+        this(eventName, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param eventName the name of the event to send
+     * @param capacity the number of properties to make room for up front
+     */
+    public EventBuilder(String eventName, int capacity) {
+        mEventName = eventName;
+        mKeys = new String[capacity];
+        mTypes = new byte[capacity];
+        mPrimitives = new long[capacity];
+        mStrings = new String[capacity];
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    public EventBuilder put(String name, long value) {
+        final int index = slotFor(name);
+        if (index >= 0) {
+            mTypes[index] = TYPE_LONG;
+            mPrimitives[index] = value;
+            mStrings[index] = null;
+        }
+        return this;
+    }
+
+    /**
+     * Sets a double property. Non-finite values, which can't be represented in JSON,
+     * are logged and ignored.
+     */
+    public EventBuilder put(String name, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            HLog.w(LOGTAG, "Ignoring non-finite value of property " + name);
+            return this;
+        }
+        final int index = slotFor(name);
+        if (index >= 0) {
+            mTypes[index] = TYPE_DOUBLE;
+            mPrimitives[index] = Double.doubleToRawLongBits(value);
+            mStrings[index] = null;
+        }
+        return this;
+    }
+
+    public EventBuilder put(String name, boolean value) {
+        final int index = slotFor(name);
+        if (index >= 0) {
+            mTypes[index] = TYPE_BOOLEAN;
+            mPrimitives[index] = value ? 1 : 0;
+            mStrings[index] = null;
+        }
+        return this;
+    }
+
+    /**
+     * Sets a string property. As with {@link HevoAPI#track(String, JSONObject)}, null values
+     * are not sent.
+     */
+    public EventBuilder put(String name, String value) {
+        if (null == value) {
+            remove(name);
+            return this;
+        }
+        final int index = slotFor(name);
+        if (index >= 0) {
+            mTypes[index] = TYPE_STRING;
+            mPrimitives[index] = 0;
+            mStrings[index] = value;
+        }
+        return this;
+    }
+
+    public EventBuilder remove(String name) {
+        final int index = indexOf(name);
+        if (index >= 0) {
+            final int tail = mSize - index - 1;
+            System.arraycopy(mKeys, index + 1, mKeys, index, tail);
+            System.arraycopy(mTypes, index + 1, mTypes, index, tail);
+            System.arraycopy(mPrimitives, index + 1, mPrimitives, index, tail);
+            System.arraycopy(mStrings, index + 1, mStrings, index, tail);
+            mSize--;
+            mKeys[mSize] = null;
+            mStrings[mSize] = null;
+        }
+        return this;
+    }
+
+    /**
+     * Removes all properties, keeping the storage for the next event.
+     */
+    public EventBuilder clear() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mStrings[i] = null;
+        }
+        mSize = 0;
+        return this;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    int indexOf(String name) {
+        for (int i = 0; i < mSize; i++) {
+            if (mKeys[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    String keyAt(int index) {
+        return mKeys[index];
+    }
+
+    byte typeAt(int index) {
+        return mTypes[index];
+    }
+
+    long longAt(int index) {
+        return mPrimitives[index];
+    }
+
+    double doubleAt(int index) {
+        return Double.longBitsToDouble(mPrimitives[index]);
+    }
+
+    boolean booleanAt(int index) {
+        return mPrimitives[index] != 0;
+    }
+
+    String stringAt(int index) {
+        return mStrings[index];
+    }
+
+    /**
+     * Copies the properties into the given object, replacing any existing properties
+     * of the same names. For the rare events that can't be written directly.
+     */
+    void putAll(JSONObject target) throws JSONException {
+        for (int i = 0; i < mSize; i++) {
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    target.put(mKeys[i], longAt(i));
+                    break;
+                case TYPE_DOUBLE:
+                    target.put(mKeys[i], doubleAt(i));
+                    break;
+                case TYPE_BOOLEAN:
+                    target.put(mKeys[i], booleanAt(i));
+                    break;
+                default:
+                    target.put(mKeys[i], stringAt(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @return a copy with arrays just big enough for the current properties, that later
+     * changes to this builder don't affect.
+     */
+    EventBuilder copy() {
+        final EventBuilder ret = new EventBuilder(mEventName, mSize);
+        System.arraycopy(mKeys, 0, ret.mKeys, 0, mSize);
+        System.arraycopy(mTypes, 0, ret.mTypes, 0, mSize);
+        System.arraycopy(mPrimitives, 0, ret.mPrimitives, 0, mSize);
+        System.arraycopy(mStrings, 0, ret.mStrings, 0, mSize);
+        ret.mSize = mSize;
+        return ret;
+    }
+
+    // Returns the index to store the named property at, growing the arrays if needed,
+    // or -1 if the name is invalid.
+    private int slotFor(String name) {
+        if (null == name) {
+            HLog.w(LOGTAG, "Can't have null keys in the properties of an EventBuilder!");
+            return -1;
+        }
+        final int existing = indexOf(name);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (mSize == mKeys.length) {
+            final int capacity = Math.max(DEFAULT_CAPACITY, mSize * 2);
+            final String[] keys = new String[capacity];
+            final byte[] types = new byte[capacity];
+            final long[] primitives = new long[capacity];
+            final String[] strings = new String[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            System.arraycopy(mTypes, 0, types, 0, mSize);
+            System.arraycopy(mPrimitives, 0, primitives, 0, mSize);
+            System.arraycopy(mStrings, 0, strings, 0, mSize);
+            mKeys = keys;
+            mTypes = types;
+            mPrimitives = primitives;
+            mStrings = strings;
+        }
+        mKeys[mSize] = name;
+        return mSize++;
+    }
+
+    private final String mEventName;
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mPrimitives; // longs, raw bits of doubles, and booleans as 0 or 1
+    private String[] mStrings;
+    private int mSize;
+
+    static final byte TYPE_LONG = 0;
+    static final byte TYPE_DOUBLE = 1;
+    static final byte TYPE_BOOLEAN = 2;
+    static final byte TYPE_STRING = 3;
+
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final String LOGTAG = "HevoAPI.EventBuilder";
+}
@@ -0,0 +1,71 @@
+package com.hevodata.android;
+
+/**
+ * Persistent queue of events waiting to be sent to Hevo.
+ *
+ * <p>The default implementation is the SQLite backed {@link HDbAdapter}. Which
+ * implementation is used is selected with the com.hevodata.android.EventStore
+ * option described in {@link HevoConfig}, or by overriding
+ * AnalyticsMessages.makeEventStore.
+ *
+ * <p>Implementations are not required to be thread-safe. They are only used
+ * from the Hevo worker thread.
+ */
+interface EventStore {
+    int DB_UPDATE_ERROR = -1;
+    int DB_OUT_OF_MEMORY_ERROR = -2;
+    int DB_UNDEFINED_CODE = -3;
+
+    /**
+     * Adds the serialized JSON of an event to the end of the queue.
+     * @param event the JSON to record
+     * @param isAutomatic mark the record as an automatic event or not
+     * @return the number of records in the queue, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    int append(String event, boolean isAutomatic);
+
+    /**
+     * Returns the oldest batch of records without removing them from the queue.
+     * @param includeAutomatic whether or not it should include automatic records
+     * @return the batch, or null if there is nothing to send
+     */
+    EventBatch peekBatch(boolean includeAutomatic);
+
+    /**
+     * Removes the records of a batch returned by peekBatch, once they have been sent.
+     * @param batch the batch to remove
+     */
+    void ack(EventBatch batch);
+
+    /**
+     * @param includeAutomatic whether or not automatic records should be counted
+     * @return the number of records in the queue
+     */
+    int depth(boolean includeAutomatic);
+
+    /**
+     * Removes all records.
+     */
+    void purge();
+
+    /**
+     * Removes at most maxRows of the oldest records created before time.
+     * @param time the unix epoch in milliseconds to remove events before
+     * @param maxRows the maximum number of records to remove in this call
+     * @return the number of records removed
+     */
+    int expire(long time, int maxRows);
+
+    /**
+     * Returns space held by removed records to the file system, doing a bounded amount of work.
+     * @param maxPages the maximum number of pages to release in this call
+     * @return the number of pages released
+     */
+    int vacuum(int maxPages);
+
+    /**
+     * Completely deletes the underlying files.
+     */
+    void deleteDB();
+}
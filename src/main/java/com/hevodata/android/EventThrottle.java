@@ -0,0 +1,190 @@
+package com.hevodata.android;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per event name sampling and rate limiting, checked by HevoAPI.track before an event is built.
+ *
+ * <p>Sampling is deterministic: with a rate of 0.25 exactly every fourth event is kept, so
+ * counts stay unbiased over short windows. Rate limits are token buckets, allowing bursts of
+ * up to burst events and then eventsPerSecond on average.
+ *
+ * <p>The events dropped either way are counted, and reported by {@link #takeSummary(long)} so
+ * that totals can still be estimated once the events reach Hevo.
+ *
+ * <p>The rules are replaced as a whole whenever one changes, so that checking them never takes
+ * a lock unless a rate limit applies. Thread-safe.
+ */
+class EventThrottle {
+    EventThrottle(long summaryIntervalMillis) {
+        mSummaryIntervalMillis = summaryIntervalMillis;
+        mRules = Collections.emptyMap();
+        mNextSummaryTime = System.currentTimeMillis() + summaryIntervalMillis;
+    }
+
+    /**
+     * @param eventName the event to sample
+     * @param rate between 0 and 1, the fraction of events to keep. 1 stops sampling.
+     */
+    public synchronized void setSampleRate(String eventName, double rate) {
+        final Rule old = mRules.get(eventName);
+        final TokenBucket bucket = null == old ? null : old.bucket;
+        updateRule(eventName, new Rule(Math.max(0, Math.min(1, rate)), bucket));
+    }
+
+    /**
+     * @param eventName the event to limit
+     * @param eventsPerSecond the average rate to allow. 0 or less removes the limit.
+     * @param burst how many events to allow at once
+     */
+    public synchronized void setRateLimit(String eventName, double eventsPerSecond, int burst) {
+        final Rule old = mRules.get(eventName);
+        final double sampleRate = null == old ? 1 : old.sampleRate;
+        final TokenBucket bucket = eventsPerSecond > 0 ? new TokenBucket(eventsPerSecond, Math.max(1, burst)) : null;
+        updateRule(eventName, new Rule(sampleRate, bucket));
+    }
+
+    /**
+     * @return whether an event with this name should be tracked
+     */
+    public boolean shouldTrack(String eventName) {
+        final Rule rule = mRules.get(eventName);
+        if (null == rule) {
+            return true;
+        }
+
+        if (rule.sampleRate < 1) {
+            final long seen = rule.seen.getAndIncrement();
+            final boolean sampled = (long) ((seen + 1) * rule.sampleRate) > (long) (seen * rule.sampleRate);
+            if (!sampled) {
+                rule.sampledOut.incrementAndGet();
+                mHasDrops = true;
+                return false;
+            }
+        }
+
+        if (null != rule.bucket && !rule.bucket.tryAcquire(System.nanoTime())) {
+            rule.rateLimited.incrementAndGet();
+            mHasDrops = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Cheap enough to call on every track.
+     *
+     * @return whether events were dropped and the summary interval has passed
+     */
+    public boolean isSummaryDue(long now) {
+        return mHasDrops && now >= mNextSummaryTime;
+    }
+
+    /**
+     * Takes the counts of dropped events since the last summary, resetting them.
+     *
+     * @return the properties of a summary event, or null if no events were dropped
+     */
+    public synchronized JSONObject takeSummary(long now) throws JSONException {
+        mNextSummaryTime = now + mSummaryIntervalMillis;
+        if (!mHasDrops) {
+            return null;
+        }
+        mHasDrops = false;
+
+        final JSONObject sampledOut = new JSONObject();
+        final JSONObject rateLimited = new JSONObject();
+        final JSONObject sampleRates = new JSONObject();
+        boolean dropped = false;
+        for (final Map.Entry<String, Rule> entry : mRules.entrySet()) {
+            final Rule rule = entry.getValue();
+            final long sampled = rule.sampledOut.getAndSet(0);
+            final long limited = rule.rateLimited.getAndSet(0);
+            if (sampled > 0) {
+                sampledOut.put(entry.getKey(), sampled);
+                sampleRates.put(entry.getKey(), rule.sampleRate);
+                dropped = true;
+            }
+            if (limited > 0) {
+                rateLimited.put(entry.getKey(), limited);
+                dropped = true;
+            }
+        }
+        if (!dropped) {
+            return null;
+        }
+
+        final JSONObject ret = new JSONObject();
+        ret.put("$sampled_out", sampledOut);
+        ret.put("$sample_rates", sampleRates);
+        ret.put("$rate_limited", rateLimited);
+        return ret;
+    }
+
+    // Must be called while synchronized. Counts of events already dropped under the
+    // old rule are carried over, so that they still make it into the next summary.
+    private void updateRule(String eventName, Rule rule) {
+        final Rule old = mRules.get(eventName);
+        if (null != old) {
+            rule.sampledOut.addAndGet(old.sampledOut.getAndSet(0));
+            rule.rateLimited.addAndGet(old.rateLimited.getAndSet(0));
+        }
+
+        final Map<String, Rule> rules = new HashMap<String, Rule>(mRules);
+        if (rule.sampleRate >= 1 && null == rule.bucket && rule.sampledOut.get() == 0 && rule.rateLimited.get() == 0) {
+            rules.remove(eventName);
+        } else {
+            rules.put(eventName, rule);
+        }
+        mRules = Collections.unmodifiableMap(rules);
+    }
+
+    private static class Rule {
+        Rule(double sampleRate, TokenBucket bucket) {
+            this.sampleRate = sampleRate;
+            this.bucket = bucket;
+        }
+
+        final double sampleRate;
+        final TokenBucket bucket;
+        final AtomicLong seen = new AtomicLong();
+        final AtomicLong sampledOut = new AtomicLong();
+        final AtomicLong rateLimited = new AtomicLong();
+    }
+
+    private static class TokenBucket {
+        TokenBucket(double tokensPerSecond, int capacity) {
+            mTokensPerNano = tokensPerSecond / 1e9;
+            mCapacity = capacity;
+            mTokens = capacity;
+            mLastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mTokensPerNano);
+            mLastRefill = now;
+            if (mTokens < 1) {
+                return false;
+            }
+            mTokens -= 1;
+            return true;
+        }
+
+        private final double mTokensPerNano;
+        private final int mCapacity;
+        private double mTokens;
+        private long mLastRefill;
+    }
+
+    private final long mSummaryIntervalMillis;
+    private volatile Map<String, Rule> mRules;
+    private volatile boolean mHasDrops;
+    private volatile long mNextSummaryTime;
+}
@@ -0,0 +1,242 @@
+package com.hevodata.android;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * Writes the wire JSON of an event, {"event": name, "properties": {..., "$h_metadata": {...}}},
+ * straight into a StringBuilder that is reused from one event to the next, rather than copying
+ * the properties into a new JSONObject graph and serializing that.
+ *
+ * <p>The output is what JSONObject.toString() gives for the equivalent objects.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used by a single thread,
+ * for us the Hevo worker thread.
+ */
+class EventWriter {
+    public EventWriter() {
+        mOut = new StringBuilder(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param eventName the name of the event
+     * @param properties the properties of the event, or null
+     * @param metadata written as $h_metadata, replacing any property of that name. May be null.
+     * @return the JSON of the event
+     * @throws JSONException if a property is a non-finite number
+     */
+    public String write(String eventName, JSONObject properties, SessionMetadata.EventMetadata metadata) throws JSONException {
+        return write(eventName, properties, null, metadata);
+    }
+
+    /**
+     * @param eventName the name of the event
+     * @param properties the properties of the event, or null
+     * @param typedProperties more properties, replacing any of the same name in properties. May be null.
+     * @param metadata written as $h_metadata, replacing any property of that name. May be null.
+     * @return the JSON of the event
+     * @throws JSONException if a property is a non-finite number
+     */
+    public String write(String eventName, JSONObject properties, EventBuilder typedProperties,
+                        SessionMetadata.EventMetadata metadata) throws JSONException {
+        return write(eventName, properties, typedProperties, null, metadata);
+    }
+
+    /**
+     * @param eventName the name of the event
+     * @param properties the properties of the event, or null
+     * @param typedProperties more properties, replacing any of the same name in properties. May be null.
+     * @param referrer properties written first, as they were serialized, unless replaced by any of the
+     *                 same name in properties or typedProperties. May be null.
+     * @param metadata written as $h_metadata, replacing any property of that name. May be null.
+     * @return the JSON of the event
+     * @throws JSONException if a property is a non-finite number
+     */
+    public String write(String eventName, JSONObject properties, EventBuilder typedProperties,
+                        ReferrerProperties referrer, SessionMetadata.EventMetadata metadata) throws JSONException {
+        final StringBuilder out = mOut;
+        out.setLength(0);
+
+        out.append('{');
+        if (null != eventName) {
+            string("event");
+            out.append(':');
+            string(eventName);
+            out.append(',');
+        }
+        string("properties");
+        out.append(":{");
+
+        boolean first = true;
+        if (null != referrer) {
+            for (int i = 0, size = referrer.size(); i < size; i++) {
+                final String key = referrer.keyAt(i);
+                if (METADATA_KEY.equals(key) || (null != properties && properties.has(key))
+                        || (null != typedProperties && typedProperties.indexOf(key) >= 0)) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(referrer.memberAt(i));
+            }
+        }
+        if (null != properties) {
+            for (final Iterator<?> iter = properties.keys(); iter.hasNext();) {
+                final String key = (String) iter.next();
+                if (METADATA_KEY.equals(key) || (null != typedProperties && typedProperties.indexOf(key) >= 0)) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                string(key);
+                out.append(':');
+                value(properties.get(key));
+            }
+        }
+        if (null != typedProperties) {
+            for (int i = 0, size = typedProperties.size(); i < size; i++) {
+                final String key = typedProperties.keyAt(i);
+                if (METADATA_KEY.equals(key)) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                string(key);
+                out.append(':');
+                typedValue(typedProperties, i);
+            }
+        }
+        if (null != metadata) {
+            if (!first) {
+                out.append(',');
+            }
+            string(METADATA_KEY);
+            out.append(':');
+            metadata(metadata);
+        }
+        out.append("}}");
+
+        final String ret = out.toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            // Don't hold on to the memory of an unusually large event
+            mOut = new StringBuilder(INITIAL_CAPACITY);
+        }
+        return ret;
+    }
+
+    private void value(Object value) throws JSONException {
+        final StringBuilder out = mOut;
+        if (null == value || JSONObject.NULL.equals(value)) {
+            out.append("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Boolean) {
+            out.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            out.append(value.toString());
+        } else {
+            string(value.toString());
+        }
+    }
+
+    private void typedValue(EventBuilder properties, int index) {
+        final StringBuilder out = mOut;
+        switch (properties.typeAt(index)) {
+            case EventBuilder.TYPE_LONG:
+                out.append(properties.longAt(index));
+                break;
+            case EventBuilder.TYPE_DOUBLE:
+                number(properties.doubleAt(index));
+                break;
+            case EventBuilder.TYPE_BOOLEAN:
+                out.append(properties.booleanAt(index));
+                break;
+            default:
+                string(properties.stringAt(index));
+                break;
+        }
+    }
+
+    // Same keys and order as SessionMetadata.EventMetadata.toJSONObject()
+    private void metadata(SessionMetadata.EventMetadata metadata) {
+        final StringBuilder out = mOut;
+        out.append("{\"h_event_id\":");
+        string(metadata.getEventId());
+        out.append(",\"h_session_id\":");
+        string(metadata.getSessionId());
+        out.append(",\"h_session_seq_id\":").append(metadata.getSequence());
+        out.append(",\"h_session_start_sec\":").append(metadata.getSessionStartEpoch());
+        out.append('}');
+    }
+
+    // Formats finite doubles the way JSONObject.numberToString does, without boxing them
+    private void number(double value) {
+        final StringBuilder out = mOut;
+        if (value == 0 && Double.doubleToRawLongBits(value) != 0) {
+            out.append("-0");
+        } else if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    // Escapes exactly as org.json's JSONStringer does
+    private void string(String value) {
+        final StringBuilder out = mOut;
+        out.append('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private StringBuilder mOut;
+
+    private static final String METADATA_KEY = "$h_metadata";
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+}
@@ -3,9 +3,13 @@ package com.hevodata.android;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDatabaseCorruptException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 
 import com.hevodata.android.util.HLog;
 
@@ -23,7 +27,7 @@ import java.util.Map;
  * <p>Not thread-safe. Instances of this class should only be used
  * by a single thread.
  */
-class HDbAdapter {
+class HDbAdapter implements EventStore {
     private static final String LOGTAG = "HevoAPI.Database";
     private static final Map<Context, HDbAdapter> sInstances = new HashMap<>();
 
@@ -32,10 +36,6 @@ class HDbAdapter {
     private static final String KEY_CREATED_AT = "created_at";
     private static final String KEY_AUTOMATIC_DATA = "automatic_data";
 
-    private static final int DB_UPDATE_ERROR = -1;
-    public static final int DB_OUT_OF_MEMORY_ERROR = -2;
-    public static final int DB_UNDEFINED_CODE = -3;
-
     private static final String DATABASE_NAME = "hevo";
     private static final int DATABASE_VERSION = 5;
 
@@ -48,13 +48,23 @@ class HDbAdapter {
         "CREATE INDEX IF NOT EXISTS time_idx ON " + EVENTS_TABLE_NAME +
         " (" + KEY_CREATED_AT + ");";
 
+    // Budget for reusing cached file system stats before checking again
+    private static final long FILE_STATS_MAX_AGE = 10 * 1000; // 10 seconds
+    private static final int FILE_STATS_MAX_USES = 100;
+
+    // Number of records given up at a time when the queue is full or over its bounds
+    private static final int EVICTION_CHUNK_SIZE = 100;
+
+    // Value of PRAGMA auto_vacuum when the database is in incremental mode
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
     private final MPDatabaseHelper mDb;
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
-        MPDatabaseHelper(Context context, String dbName) {
+        MPDatabaseHelper(Context context, String dbName, HevoConfig config) {
             super(context, dbName, null, DATABASE_VERSION);
             mDatabaseFile = context.getDatabasePath(dbName);
-            mConfig = HevoConfig.getInstance(context);
+            mConfig = config;
         }
 
         /**
@@ -63,6 +73,7 @@ class HDbAdapter {
         void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            invalidateFileStats();
         }
 
         @Override
@@ -87,14 +98,52 @@ class HDbAdapter {
         }
 
         boolean belowMemThreshold() {
-            if (mDatabaseFile.exists()) {
-                return Math.max(mDatabaseFile.getUsableSpace(), mConfig.getMinimumDatabaseLimit()) >= mDatabaseFile.length();
+            refreshFileStats();
+            if (mDatabaseExists) {
+                return Math.max(mUsableSpace, mConfig.getMinimumDatabaseLimit()) >= mDatabaseLength;
             }
             return true;
         }
 
+        long getDatabaseLength() {
+            refreshFileStats();
+            return mDatabaseLength;
+        }
+
+        /**
+         * Forces the next check to go to the file system, for use after operations
+         * that change the size of the file by more than a few records.
+         */
+        void invalidateFileStats() {
+            mFileStatsTimestamp = -1;
+        }
+
+        // Every check costs a stat and a statfs, which is a lot to pay on every insert
+        // for values that change slowly. We refresh them on a time and use budget instead.
+        private void refreshFileStats() {
+            final long now = SystemClock.elapsedRealtime();
+            if (mFileStatsTimestamp >= 0 &&
+                    now - mFileStatsTimestamp < FILE_STATS_MAX_AGE &&
+                    mFileStatsUses < FILE_STATS_MAX_USES) {
+                mFileStatsUses++;
+                return;
+            }
+
+            mDatabaseExists = mDatabaseFile.exists();
+            mUsableSpace = mDatabaseExists ? mDatabaseFile.getUsableSpace() : 0;
+            mDatabaseLength = mDatabaseExists ? mDatabaseFile.length() : 0;
+            mFileStatsTimestamp = now;
+            mFileStatsUses = 0;
+        }
+
         private final File mDatabaseFile;
         private final HevoConfig mConfig;
+
+        private boolean mDatabaseExists;
+        private long mUsableSpace;
+        private long mDatabaseLength;
+        private long mFileStatsTimestamp = -1;
+        private int mFileStatsUses;
     }
 
     HDbAdapter(Context context) {
@@ -102,7 +151,11 @@ class HDbAdapter {
     }
 
     HDbAdapter(Context context, String dbName) {
-        mDb = new MPDatabaseHelper(context, dbName);
+        this(context, dbName, HevoConfig.getInstance(context));
+    }
+
+    HDbAdapter(Context context, String dbName, HevoConfig config) {
+        mDb = new MPDatabaseHelper(context, dbName, config);
     }
 
     public static HDbAdapter getInstance(Context context) {
@@ -128,39 +181,58 @@ class HDbAdapter {
      * on failure
      */
     public int addJSON(JSONObject j, boolean isAutomaticRecord) {
+        return addJSON(j.toString(), isAutomaticRecord);
+    }
+
+    /**
+     * Adds an already serialized JSON event or person record to the SQLiteDatabase.
+     * @param json the JSON to record
+     * @param isAutomaticRecord mark the record as an automatic event or not
+     * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
+     * on failure
+     */
+    public int addJSON(String json, boolean isAutomaticRecord) {
         // we are aware of the race condition here, but what can we do..?
-        if (!this.belowMemThreshold()) {
-            HLog.e(LOGTAG, "There is not enough space left on the device to store Hevo data, so data was discarded");
-            return DB_OUT_OF_MEMORY_ERROR;
-        }
+        final boolean lowOnSpace = !this.belowMemThreshold();
 
         Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
+            if (lowOnSpace) {
+                // Keep the newest events rather than the oldest, as when the database is full
+                final int evicted = evictOldestEvents(db, EVICTION_CHUNK_SIZE);
+                if (evicted == 0) {
+                    HLog.e(LOGTAG, "There is not enough space left on the device to store Hevo data, so data was discarded");
+                    return DB_OUT_OF_MEMORY_ERROR;
+                }
+                HLog.w(LOGTAG, "There is little space left on the device, evicted " + evicted + " of the oldest Hevo events");
+            }
 
             final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
+            cv.put(KEY_DATA, json);
             cv.put(KEY_CREATED_AT, System.currentTimeMillis());
             cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            db.insert(EVENTS_TABLE_NAME, null, cv);
+            try {
+                db.insertOrThrow(EVENTS_TABLE_NAME, null, cv);
+            } catch (final SQLiteFullException e) {
+                // Make room by giving up the oldest (least valuable) records, and try once more.
+                final int evicted = evictOldestEvents(db, EVICTION_CHUNK_SIZE);
+                HLog.w(LOGTAG, "Hevo events DB is full, evicted " + evicted + " of the oldest events");
+                db.insertOrThrow(EVENTS_TABLE_NAME, null, cv);
+            }
 
             c = db.rawQuery("SELECT COUNT(*) FROM " + EVENTS_TABLE_NAME, null);
             c.moveToFirst();
             count = c.getInt(0);
-        } catch (final SQLiteException e) {
-            HLog.e(LOGTAG, "Could not add Hevo data to table " + EVENTS_TABLE_NAME + ". Re-initializing database.", e);
+            c.close();
+            c = null;
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
-            mDb.deleteDatabase();
+            count -= enforceQueueBounds(db, count);
+        } catch (final SQLiteException e) {
+            count = DB_UPDATE_ERROR;
+            onDatabaseError("Could not add Hevo data to table " + EVENTS_TABLE_NAME + ".", e);
         } finally {
             if (c != null) {
                 c.close();
@@ -170,6 +242,67 @@ class HDbAdapter {
         return count;
     }
 
+    /**
+     * Evicts the oldest records if the queue holds more than MaximumQueueSize rows or
+     * uses more than MaximumDatabaseSize bytes.
+     *
+     * @return the number of records evicted
+     */
+    private int enforceQueueBounds(SQLiteDatabase db, int count) {
+        final HevoConfig config = mDb.mConfig;
+        int evicted = 0;
+        if (count > config.getMaximumQueueSize()) {
+            evicted += evictOldestEvents(db, count - config.getMaximumQueueSize());
+        }
+
+        // The file only shrinks when it is vacuumed, so it is an upper bound on what we use.
+        // Only when it is over the limit do we pay for asking SQLite how much is really in use.
+        final long maxBytes = config.getMaximumDatabaseSize();
+        if (mDb.getDatabaseLength() > maxBytes && getUsedBytes(db) > maxBytes) {
+            evicted += evictOldestEvents(db, EVICTION_CHUNK_SIZE);
+        }
+
+        if (evicted > 0) {
+            HLog.w(LOGTAG, "Hevo events queue is over its configured bounds, evicted " + evicted + " of the oldest events");
+        }
+        return evicted;
+    }
+
+    /**
+     * Deletes up to maxRows of the oldest records, taking automatic events before
+     * any events tracked explicitly by the user.
+     *
+     * @return the number of records deleted
+     */
+    private int evictOldestEvents(SQLiteDatabase db, int maxRows) {
+        int evicted = db.delete(EVENTS_TABLE_NAME, "_id IN (SELECT _id FROM " + EVENTS_TABLE_NAME +
+                " WHERE " + KEY_AUTOMATIC_DATA + " = 1 ORDER BY _id ASC LIMIT " + maxRows + ")", null);
+        if (evicted < maxRows) {
+            evicted += db.delete(EVENTS_TABLE_NAME, "_id IN (SELECT _id FROM " + EVENTS_TABLE_NAME +
+                    " ORDER BY _id ASC LIMIT " + (maxRows - evicted) + ")", null);
+        }
+        return evicted;
+    }
+
+    private long getUsedBytes(SQLiteDatabase db) {
+        return (DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) -
+                DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null)) * db.getPageSize();
+    }
+
+    /**
+     * Only a corrupt database is thrown away. Anything else (a locked database, a transient
+     * I/O error) leaves the queue as it is, so the next write or cleanup can try again
+     * without losing the events we are holding.
+     */
+    private void onDatabaseError(String message, SQLiteException e) {
+        if (e instanceof SQLiteDatabaseCorruptException) {
+            HLog.e(LOGTAG, message + " The database is corrupt, re-initializing database.", e);
+            mDb.deleteDatabase();
+        } else {
+            HLog.e(LOGTAG, message + " Will try again later.", e);
+        }
+    }
+
     /**
      * Removes events with an _id <= last_id from table
      * @param last_id the last id to delete
@@ -185,13 +318,7 @@ class HDbAdapter {
             }
             db.delete(EVENTS_TABLE_NAME, deleteQuery.toString(), null);
         } catch (final SQLiteException e) {
-            HLog.e(LOGTAG, "Could not clean sent Hevo records from " + EVENTS_TABLE_NAME + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean sent Hevo records from " + EVENTS_TABLE_NAME + ".", e);
         } finally {
             mDb.close();
         }
@@ -206,16 +333,77 @@ class HDbAdapter {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(EVENTS_TABLE_NAME, KEY_CREATED_AT + " <= " + time, null);
         } catch (final SQLiteException e) {
-            HLog.e(LOGTAG, "Could not clean timed-out Hevo records from " + EVENTS_TABLE_NAME + ". Re-initializing database.", e);
+            onDatabaseError("Could not clean timed-out Hevo records from " + EVENTS_TABLE_NAME + ".", e);
+        } finally {
+            mDb.close();
+        }
+    }
+
+    /**
+     * Removes at most maxRows of the oldest events created before time. Callers
+     * that need to expire a large backlog should call this repeatedly until it
+     * returns less than maxRows, so a single call never holds the database for long.
+     *
+     * @param time the unix epoch in milliseconds to remove events before
+     * @param maxRows the maximum number of rows to remove in this call
+     * @return the number of rows removed
+     */
+    public int cleanupEvents(long time, int maxRows) {
+        int deleted = 0;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            deleted = db.delete(EVENTS_TABLE_NAME, "_id IN (SELECT _id FROM " + EVENTS_TABLE_NAME +
+                    " WHERE " + KEY_CREATED_AT + " <= " + time + " ORDER BY _id ASC LIMIT " + maxRows + ")", null);
+        } catch (final SQLiteException e) {
+            onDatabaseError("Could not clean timed-out Hevo records from " + EVENTS_TABLE_NAME + ".", e);
+        } finally {
+            mDb.close();
+        }
+        return deleted;
+    }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+    /**
+     * Returns up to maxPages free pages to the file system. The first call on a database
+     * created without incremental auto_vacuum converts it, which requires a full VACUUM.
+     *
+     * @param maxPages the maximum number of pages to release in this call
+     * @return the number of pages released
+     */
+    @Override
+    public int vacuum(int maxPages) {
+        Cursor c = null;
+        int released = 0;
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+
+            c = db.rawQuery("PRAGMA auto_vacuum", null);
+            final int autoVacuum = c.moveToFirst() ? c.getInt(0) : AUTO_VACUUM_INCREMENTAL;
+            c.close();
+            c = null;
+
+            if (autoVacuum != AUTO_VACUUM_INCREMENTAL) {
+                HLog.v(LOGTAG, "Enabling incremental auto_vacuum on the Hevo events DB");
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            }
+
+            // incremental_vacuum yields one row per page released, and only does
+            // its work as those rows are stepped through.
+            c = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            while (c.moveToNext()) {
+                released++;
+            }
+            mDb.invalidateFileStats();
+        } catch (final SQLiteException e) {
+            // Vacuuming is only an optimization, the data itself is fine. Try again next time.
+            HLog.w(LOGTAG, "Could not vacuum the Hevo events DB", e);
         } finally {
+            if (c != null) {
+                c.close();
+            }
             mDb.close();
         }
+        return released;
     }
 
     /**
@@ -226,13 +414,7 @@ class HDbAdapter {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(EVENTS_TABLE_NAME, null, null);
         } catch (final SQLiteException e) {
-            HLog.e(LOGTAG, "Could not clean timed-out Hevo records from " + EVENTS_TABLE_NAME + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean timed-out Hevo records from " + EVENTS_TABLE_NAME + ".", e);
         } finally {
             mDb.close();
         }
@@ -246,18 +428,13 @@ class HDbAdapter {
             final SQLiteDatabase db = mDb.getWritableDatabase();
             db.delete(EVENTS_TABLE_NAME, KEY_AUTOMATIC_DATA + " = 1", null);
         } catch (final SQLiteException e) {
-            HLog.e(LOGTAG, "Could not clean automatic Hevo records from " + EVENTS_TABLE_NAME + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            onDatabaseError("Could not clean automatic Hevo records from " + EVENTS_TABLE_NAME + ".", e);
         } finally {
             mDb.close();
         }
     }
 
+    @Override
     public void deleteDB() {
         mDb.deleteDatabase();
     }
@@ -269,8 +446,8 @@ class HDbAdapter {
      *
      * @param includeAutomaticEvents whether or not it should include pre-track records
      * @return String array containing the maximum ID, the data string
-     * representing the events (or null if none could be successfully retrieved) and the total
-     * current number of events in the queue.
+     * representing the events (or null if none could be successfully retrieved), the total
+     * current number of events in the queue and the number of events in the data string.
      */
     public String[] generateDataString(boolean includeAutomaticEvents) {
         Cursor c = null;
@@ -278,6 +455,7 @@ class HDbAdapter {
         String data = null;
         String last_id = null;
         String queueCount = null;
+        String batchCount = null;
         final SQLiteDatabase db = mDb.getReadableDatabase();
 
         try {
@@ -311,6 +489,7 @@ class HDbAdapter {
 
             if (arr.length() > 0) {
                 data = arr.toString();
+                batchCount = String.valueOf(arr.length());
             }
         } catch (final SQLiteException e) {
             HLog.e(LOGTAG, "Could not pull records for Hevo out of database " + EVENTS_TABLE_NAME + ". Waiting to send.", e);
@@ -332,11 +511,68 @@ class HDbAdapter {
         }
 
         if (last_id != null && data != null) {
-            return new String[]{last_id, data, queueCount};
+            return new String[]{last_id, data, queueCount, batchCount};
         }
         return null;
     }
 
+    // EventStore is implemented on top of the methods above, so that subclasses
+    // overriding them (as our tests do) see every operation the worker makes.
+
+    @Override
+    public int append(String event, boolean isAutomatic) {
+        return addJSON(event, isAutomatic);
+    }
+
+    @Override
+    public EventBatch peekBatch(boolean includeAutomatic) {
+        final String[] data = generateDataString(includeAutomatic);
+        if (data == null) {
+            return null;
+        }
+        // Subclasses may still return the older three element array
+        final int count = data.length > 3 ? Integer.parseInt(data[3]) : 0;
+        return new EventBatch(data[0], data[1], count, Integer.parseInt(data[2]), includeAutomatic);
+    }
+
+    @Override
+    public void ack(EventBatch batch) {
+        cleanupEvents(batch.getLastId(), batch.includesAutomatic());
+    }
+
+    @Override
+    public int depth(boolean includeAutomatic) {
+        Cursor c = null;
+        try {
+            final SQLiteDatabase db = mDb.getReadableDatabase();
+            final StringBuilder query = new StringBuilder("SELECT COUNT(*) FROM " + EVENTS_TABLE_NAME);
+            if (!includeAutomatic) {
+                query.append(" WHERE " + KEY_AUTOMATIC_DATA + " = 0");
+            }
+            c = db.rawQuery(query.toString(), null);
+            c.moveToFirst();
+            return c.getInt(0);
+        } catch (final SQLiteException e) {
+            HLog.e(LOGTAG, "Could not count Hevo records in " + EVENTS_TABLE_NAME + ".", e);
+            return 0;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            mDb.close();
+        }
+    }
+
+    @Override
+    public void purge() {
+        cleanupAllEvents();
+    }
+
+    @Override
+    public int expire(long time, int maxRows) {
+        return cleanupEvents(time, maxRows);
+    }
+
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
@@ -12,6 +12,8 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.hevodata.android.util.HLog;
 
@@ -21,10 +23,17 @@ import org.json.JSONObject;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 
@@ -88,18 +97,37 @@ public class HevoAPI {
      * String version of the library.
      */
     private final Context mContext;
-    private final AnalyticsMessages mMessages;
-    private final HevoConfig mConfig;
-    private final PersistentIdentity mPersistentIdentity;
-    private final Map<String, String> mDeviceInfo;
-    private final Map<String, Long> mEventTimings;
-    private HevoActivityLifecycleCallbacks mHevoActivityLifecycleCallbacks;
     private final SessionMetadata mSessionMetadata;
+    private final EventThrottle mEventThrottle;
+
+    // Set by initialize(), and only read once initialization has finished, see deferred()
+    private AnalyticsMessages mMessages;
+    private HevoConfig mConfig;
+    private PersistentIdentity mPersistentIdentity;
+    private Map<String, String> mDeviceInfo;
+    private Map<String, Long> mEventTimings;
+    private HevoActivityLifecycleCallbacks mHevoActivityLifecycleCallbacks;
 
-    // Maps each token to a singleton HevoAPI instance
-    private static final Map<Context, HevoAPI> sInstance = new HashMap<>();
+    private volatile boolean mInitialized;
+    // Set instead of mInitialized when initialize() threw, after which every call does nothing
+    private volatile boolean mInitFailed;
+    private volatile Thread mInitializingThread;
+    private final CountDownLatch mInitializedLatch = new CountDownLatch(1);
+    private final List<Runnable> mPendingCalls = new ArrayList<Runnable>();
+
+    // Maps each token to a singleton HevoAPI instance. Read without locking, instances are
+    // only created and added while synchronized on it.
+    private static final Map<Context, HevoAPI> sInstance = new ConcurrentHashMap<>();
     private static final SharedPreferencesLoader sPrefsLoader = new SharedPreferencesLoader();
     private static Future<SharedPreferences> sReferrerPrefs;
+    private static final Executor sInitExecutor = Executors.newSingleThreadExecutor();
+
+    // The files PersistentIdentity keeps its state in, besides the referrer preferences
+    private static final String STORED_PREFS_NAME = "com.hevodata.android.HevoAPI_";
+    private static final String TIME_EVENTS_PREFS_NAME = "com.hevodata.android.HevoAPI.TimeEvents_";
+    private static final String HEVO_PREFS_NAME = "com.hevodata.android.Hevo";
+
+    private static final long THROTTLE_SUMMARY_INTERVAL = 60 * 1000; // one minute
 
     private static final String LOGTAG = "HevoAPI.API";
     private static final String APP_LINKS_LOGTAG = "HevoAPI.AL";
@@ -118,6 +146,49 @@ public class HevoAPI {
      */
     HevoAPI(Context context, Future<SharedPreferences> referrerPreferences, HevoConfig config, boolean optOutTrackingDefault) {
         mContext = context;
+        mSessionMetadata = new SessionMetadata();
+        mEventThrottle = new EventThrottle(THROTTLE_SUMMARY_INTERVAL);
+
+        mInitialized = true;
+        mInitializedLatch.countDown();
+        initialize(referrerPreferences, config, optOutTrackingDefault);
+    }
+
+    /**
+     * Used by getInstance, returns without waiting for anything. The slow parts of construction,
+     * reading the configuration and preferences and the first events, run on initializer,
+     * and calls made meanwhile are queued until they're done.
+     */
+    HevoAPI(final Context context, final Future<SharedPreferences> referrerPreferences,
+            final boolean optOutTrackingDefault, Executor initializer) {
+        mContext = context;
+        mSessionMetadata = new SessionMetadata();
+        mEventThrottle = new EventThrottle(THROTTLE_SUMMARY_INTERVAL);
+
+        initializer.execute(new Runnable() {
+            @Override
+            public void run() {
+                mInitializingThread = Thread.currentThread();
+                boolean initialized = false;
+                try {
+                    initialize(referrerPreferences, HevoConfig.getInstance(context), optOutTrackingDefault);
+                    initialized = true;
+                } catch (final RuntimeException e) {
+                    HLog.e(LOGTAG, "Exception initializing HevoAPI, it will not track anything", e);
+                } finally {
+                    // Whatever happened, callers must not be left waiting
+                    if (initialized) {
+                        replayPendingCalls();
+                    } else {
+                        failInitialization();
+                    }
+                    mInitializingThread = null;
+                }
+            }
+        });
+    }
+
+    private void initialize(Future<SharedPreferences> referrerPreferences, HevoConfig config, boolean optOutTrackingDefault) {
         mConfig = config;
 
         final Map<String, String> deviceInfo = new HashMap<String, String>();
@@ -137,8 +208,7 @@ public class HevoAPI {
         }
         mDeviceInfo = Collections.unmodifiableMap(deviceInfo);
 
-        mSessionMetadata = new SessionMetadata();
-        mPersistentIdentity = getPersistentIdentity(context, referrerPreferences);
+        mPersistentIdentity = getPersistentIdentity(mContext, referrerPreferences);
         mEventTimings = mPersistentIdentity.getTimeEvents();
         mMessages = getAnalyticsMessages();
 
@@ -158,7 +228,7 @@ public class HevoAPI {
         registerHevoActivityLifecycleCallbacks();
 
         if (sendAppOpen()) {
-            track("$app_open", null);
+            track("$app_open", null, false);
         }
 
         if (!mPersistentIdentity.isFirstIntegration()) {
@@ -225,6 +295,10 @@ public class HevoAPI {
      * }
      * }
      * </pre>
+     * <p>getInstance does not wait for the instance to read its configuration and stored
+     * state, which happens on a background thread. Calls made on the instance meanwhile are
+     * queued and run in order once it is ready, except for those returning state, like
+     * {@link #getDistinctId()}, which wait for it.</p>
      *
      * @param context The application context you are tracking
      * @param optOutTrackingDefault Whether or not Hevo can start tracking by default. See
@@ -235,9 +309,20 @@ public class HevoAPI {
         if (null == context) {
             return null;
         }
-        synchronized (sInstance) {
-            final Context appContext = context.getApplicationContext();
+        final Context appContext = context.getApplicationContext();
+        if (null == appContext) {
+            HLog.e(LOGTAG, "getInstance called with a context that has no application context yet, call it from Application.onCreate or later");
+            return null;
+        }
 
+        // Many apps call getInstance from every Activity, so once the instance exists this doesn't lock
+        final HevoAPI existing = sInstance.get(appContext);
+        if (null != existing) {
+            checkIntentForInboundAppLink(context);
+            return existing;
+        }
+
+        synchronized (sInstance) {
             if (null == sReferrerPrefs) {
                 sReferrerPrefs = sPrefsLoader.loadPreferences(context, HevoConfig.REFERRER_PREFS_NAME, null);
             }
@@ -245,7 +330,7 @@ public class HevoAPI {
             Map <Context, HevoAPI> instances = sInstance;
             HevoAPI instance = instances.get(appContext);
             if (null == instance && ConfigurationChecker.checkBasicConfiguration(appContext)) {
-                instance = new HevoAPI(appContext, sReferrerPrefs, optOutTrackingDefault);
+                instance = new HevoAPI(appContext, sReferrerPrefs, optOutTrackingDefault, sInitExecutor);
                 registerAppLinksListeners(context, instance);
                 instances.put(appContext, instance);
             }
@@ -256,6 +341,83 @@ public class HevoAPI {
         }
     }
 
+    /**
+     * Starts loading the preferences files HevoAPI keeps its state in, in parallel on background
+     * threads, so that they are ready or nearly so when the first instance needs them.
+     *
+     * <p>Calling this is optional. It helps when getInstance is only called some time into
+     * startup, in which case call it as early as possible, for instance first thing in
+     * your Application's onCreate. Files already loaded are not loaded again.</p>
+     *
+     * <p>This reads the configuration, see {@link HevoConfig#setInstance(HevoConfig)}.</p>
+     *
+     * @param context The application context you are tracking
+     */
+    public static void preloadPreferences(Context context) {
+        if (null == context) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        preloadPreferences(appContext, HevoConfig.getInstance(appContext).getMappedPreferences());
+    }
+
+    private static void preloadPreferences(Context appContext, boolean mapped) {
+        synchronized (sInstance) {
+            if (null == sReferrerPrefs) {
+                sReferrerPrefs = sPrefsLoader.loadPreferences(appContext, HevoConfig.REFERRER_PREFS_NAME, null);
+            }
+        }
+
+        sPrefsLoader.loadPreferences(appContext, STORED_PREFS_NAME, null, mapped);
+        sPrefsLoader.loadPreferences(appContext, TIME_EVENTS_PREFS_NAME, null, mapped);
+        sPrefsLoader.loadPreferences(appContext, HEVO_PREFS_NAME, null, mapped);
+    }
+
+    /**
+     * Does ahead of time the work the first instance and its first event would otherwise pay
+     * for, in the background: loading the preferences, starting the worker thread and opening
+     * the event store.
+     *
+     * <p>Called at process start by {@link HevoInitProvider} when it is declared in the
+     * manifest, but can also be called directly, as early as possible.</p>
+     *
+     * <p>Starting the worker and opening the event store depend on the configuration, so they
+     * are left for the main thread's next turn, when the configuration is settled. Until then
+     * {@link HevoConfig#setInstance(HevoConfig)} can still be called, typically from your
+     * Application's onCreate.</p>
+     *
+     * @param context The application context you are tracking
+     */
+    public static void warmUp(Context context) {
+        if (null == context) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        // The same thread initializes instances, so getInstance picks up where this leaves off
+        sInitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Should the guess be wrong, the files the instance needs are loaded when it asks
+                preloadPreferences(appContext, HevoConfig.peekMappedPreferences(appContext));
+            }
+        });
+        // Posted rather than run now so that an Application's onCreate, which runs before the main
+        // looper does, can still call HevoConfig.setInstance. It settles the configuration
+        // before the first Activity is created, so the worker has a head start on it.
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                HevoConfig.getInstance(appContext);
+                sInitExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        AnalyticsMessages.getInstance(appContext).warmUp();
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * This function creates a distinct_id alias from alias to original. If original is null, then it will create an alias
      * to the current events distinct_id, which may be the distinct_id randomly generated by the Hevo library
@@ -266,12 +428,16 @@ public class HevoAPI {
      * @param alias the new distinct_id that should represent original.
      * @param original the old distinct_id that alias will be mapped to.
      */
-    public void alias(String alias, String original) {
+    public void alias(final String alias, final String original) {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                alias(alias, original);
+            }
+        })) return;
         if (hasOptedOutTracking()) return;
-        if (original == null) {
-            original = getDistinctId();
-        }
-        if (alias.equals(original)) {
+        final String originalId = original == null ? getDistinctId() : original;
+        if (alias.equals(originalId)) {
             HLog.w(LOGTAG, "Attempted to alias identical distinct_ids " + alias + ". Alias message will not be sent.");
             return;
         }
@@ -279,7 +445,7 @@ public class HevoAPI {
         try {
             final JSONObject j = new JSONObject();
             j.put("alias", alias);
-            j.put("original", original);
+            j.put("original", originalId);
             track(ReservedEvents.ALIAS, j);
         } catch (final JSONException e) {
             HLog.e(LOGTAG, "Failed to alias", e);
@@ -310,24 +476,30 @@ public class HevoAPI {
      *     value is globally unique for each individual user you intend to track.
      *
      */
-    public void identify(String distinctId) {
-        distinctId = distinctId == null ? "" : distinctId.trim();
-        if (hasOptedOutTracking() || distinctId.isEmpty()) {
+    public void identify(final String distinctId) {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                identify(distinctId);
+            }
+        })) return;
+        final String trimmedId = distinctId == null ? "" : distinctId.trim();
+        if (hasOptedOutTracking() || trimmedId.isEmpty()) {
             return;
         }
         try {
             String oldIdentity = getDistinctId();
-            if (!oldIdentity.equals(distinctId)) {
+            if (!oldIdentity.equals(trimmedId)) {
                 final JSONObject j = new JSONObject();
                 j.put("old_identity", oldIdentity);
-                j.put("new_identity", distinctId);
+                j.put("new_identity", trimmedId);
                 track(ReservedEvents.IDENTITY_CHANGE, j);
             }
         } catch (JSONException e) {
             HLog.e(LOGTAG, "Failed to set ", e);
         }
         synchronized (mPersistentIdentity) {
-            mPersistentIdentity.setEventsDistinctId(distinctId);
+            mPersistentIdentity.setEventsDistinctId(trimmedId);
         }
     }
 
@@ -339,8 +511,17 @@ public class HevoAPI {
      * @param eventName the name of the event to track with timing.
      */
     public void timeEvent(final String eventName) {
+        timeEvent(eventName, System.currentTimeMillis());
+    }
+
+    private void timeEvent(final String eventName, final long writeTime) {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                timeEvent(eventName, writeTime);
+            }
+        })) return;
         if (hasOptedOutTracking()) return;
-        final long writeTime = System.currentTimeMillis();
         synchronized (mEventTimings) {
             mEventTimings.put(eventName, writeTime);
             mPersistentIdentity.addTimeEvent(eventName, writeTime);
@@ -353,6 +534,7 @@ public class HevoAPI {
      * @param eventName the name of the event to be tracked that was previously called with timeEvent()
      */
     public double eventElapsedTime(final String eventName) {
+        if (!awaitInitialization()) return 0;
         final long currentTime = System.currentTimeMillis();
         Long startTime;
         synchronized (mEventTimings) {
@@ -375,13 +557,17 @@ public class HevoAPI {
      *
      * See also {@link #track(String, org.json.JSONObject)}
      */
-    public void trackMap(String eventName, Map<String, Object> properties) {
-        if (hasOptedOutTracking()) return;
+    public void trackMap(final String eventName, Map<String, Object> properties) {
+        // Checked first so that events sampled out or rate limited aren't converted for nothing.
+        // Opt out is checked, and the call queued during initialization, by trackAfterThrottle.
+        if (!mEventThrottle.shouldTrack(eventName)) {
+            return;
+        }
         if (null == properties) {
-            track(eventName, null);
+            trackAfterThrottle(eventName, null, false);
         } else {
             try {
-                track(eventName, new JSONObject(properties));
+                trackAfterThrottle(eventName, new JSONObject(properties), false);
             } catch (NullPointerException e) {
                 HLog.w(LOGTAG, "Can't have null keys in the properties of trackMap!");
             }
@@ -404,18 +590,135 @@ public class HevoAPI {
     // notifications from the UI thread, which might not be our HevoAPI "home" thread.
     // This MAY CHANGE IN FUTURE RELEASES, so minimize code that assumes thread safety
     // (and perhaps document that code here).
-    public void track(String eventName, JSONObject properties) {
-        if (hasOptedOutTracking()) return;
+    public void track(final String eventName, JSONObject properties) {
         track(eventName, properties, false);
     }
 
+    /**
+     * Track an event with typed properties.
+     *
+     * <p>Unlike {@link #track(String, JSONObject)} and {@link #trackMap(String, Map)}, numeric and
+     * boolean properties are not boxed into objects, which makes this the cheaper way of tracking
+     * events at a high rate. The builder is copied, so it can be cleared and reused as soon as
+     * this returns.
+     *
+     * @param event the event to send
+     */
+    public void track(EventBuilder event) {
+        if (!mEventThrottle.shouldTrack(event.getEventName())) {
+            return;
+        }
+        final long eventTime = System.currentTimeMillis();
+        final EventBuilder snapshot = event.copy();
+        if (shouldDefer() && deferred(new Runnable() {
+            @Override
+            public void run() {
+                track(snapshot.getEventName(), null, snapshot, false, eventTime);
+            }
+        })) return;
+        track(snapshot.getEventName(), null, snapshot, false, eventTime);
+    }
+
+    /**
+     * Equivalent to {@link #aggregate(String, Map, double)} without dimensions.
+     *
+     * @param eventName the name of the rolled up event
+     * @param value the value to add to the current window
+     */
+    public void aggregate(String eventName, double value) {
+        aggregate(eventName, null, value);
+    }
+
+    /**
+     * Aggregate a value instead of tracking an event for every occurrence.
+     *
+     * <p>Values with the same event name and dimensions are accumulated in memory, and
+     * sent as a single event per aggregation window (one minute by default, see
+     * {@link HevoConfig}). That event has the dimensions as properties, together with the
+     * $count, $sum, $min and $max of the values and the $window_start_sec and $window_end_sec
+     * of the window. Super properties are not added to aggregated events.
+     *
+     * <p>For example, to count how often items are viewed, and for how long, by category:
+     * <pre>
+     * {@code
+     *     Map<String, String> dimensions = new HashMap<String, String>();
+     *     dimensions.put("category", item.getCategory());
+     *     hevo.aggregate("Item Viewed", dimensions, viewSeconds);
+     * }
+     * </pre>
+     *
+     * <p>Values aggregated in a window that hasn't ended yet are lost if the process dies, except
+     * that windows are ended early when the app goes to the background.
+     *
+     * @param eventName the name of the rolled up event
+     * @param dimensions the properties that distinguish one rollup from another, or null. Keep the
+     *                   number of distinct values small, since every combination is a separate event.
+     * @param value the value to add to the current window
+     */
+    public void aggregate(final String eventName, Map<String, String> dimensions, final double value) {
+        if (shouldDefer()) {
+            final Map<String, String> snapshot = null == dimensions ? null : new HashMap<String, String>(dimensions);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    aggregate(eventName, snapshot, value);
+                }
+            })) return;
+        }
+        if (hasOptedOutTracking()) return;
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            HLog.w(LOGTAG, "Ignoring non-finite value aggregated for " + eventName);
+            return;
+        }
+
+        final Map<String, String> sortedDimensions;
+        try {
+            sortedDimensions = null == dimensions || dimensions.isEmpty() ?
+                    Collections.<String, String>emptyMap() : new TreeMap<String, String>(dimensions);
+        } catch (NullPointerException e) {
+            HLog.w(LOGTAG, "Can't have null keys in the dimensions of aggregate!");
+            return;
+        }
+        mMessages.aggregateMessage(new AnalyticsMessages.AggregateDescription(eventName, sortedDimensions, value,
+                getDistinctId(), mSessionMetadata));
+    }
+
+    /**
+     * Send only a sample of the events with the given name.
+     *
+     * <p>With a rate of 0.1, one in every ten events is kept, deterministically rather than at random.
+     * The number of events left out is sent every minute or so in a $hre_throttle_summary event,
+     * together with the rate, so that totals can still be estimated.
+     *
+     * @param eventName the name of the events to sample
+     * @param rate between 0 and 1, the fraction of events to send. Pass 1 to send every event again.
+     */
+    public void setEventSampleRate(String eventName, double rate) {
+        mEventThrottle.setSampleRate(eventName, rate);
+    }
+
+    /**
+     * Limit how often events with the given name are sent.
+     *
+     * <p>Up to burst events are sent at once, after which events are sent at no more than
+     * eventsPerSecond on average and the rest are dropped. Dropped events are counted in the
+     * $hre_throttle_summary event, as for {@link #setEventSampleRate(String, double)}.
+     * When both are set, sampling applies first.
+     *
+     * @param eventName the name of the events to limit
+     * @param eventsPerSecond the average rate to allow. Pass 0 to remove the limit.
+     * @param burst the number of events to allow in a burst
+     */
+    public void setEventRateLimit(String eventName, double eventsPerSecond, int burst) {
+        mEventThrottle.setRateLimit(eventName, eventsPerSecond, burst);
+    }
+
     /**
      * Equivalent to {@link #track(String, JSONObject)} with a null argument for properties.
      * Consider adding properties to your tracking to get the best insights and experience from Hevo.
      * @param eventName the name of the event to send
      */
     public void track(String eventName) {
-        if (hasOptedOutTracking()) return;
         track(eventName, null);
     }
 
@@ -431,10 +734,46 @@ public class HevoAPI {
      * your main application activity.
      */
     public void flush() {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        })) return;
         if (hasOptedOutTracking()) return;
         mMessages.postToServer();
     }
 
+    /**
+     * Returns a snapshot of counters describing how events are moving from your calls to
+     * {@link #track(String, JSONObject)} to the Hevo servers: how many were queued, dropped
+     * and sent, how deep the local queue is, and how long writes and uploads take.
+     *
+     * <p>This is cheap, and safe to call from any thread.
+     *
+     * @return a snapshot of the pipeline counters of this process
+     */
+    public PipelineStats getPipelineStats() {
+        if (!awaitInitialization()) return new PipelineCounters().snapshot();
+        return mMessages.getPipelineStats();
+    }
+
+    /**
+     * Writes histograms of the background worker's timings to logcat, for diagnosis: time from
+     * track to the event being stored, store writes, batch reads and HTTP round trips.
+     *
+     * <p>They are logged at INFO level, so debug logging must be enabled to see them.
+     */
+    public void dumpPipelineHistograms() {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                dumpPipelineHistograms();
+            }
+        })) return;
+        mMessages.dumpHistograms();
+    }
+
     /**
      * Returns a json object of the user's current super properties
      *
@@ -443,6 +782,7 @@ public class HevoAPI {
      */
       public JSONObject getSuperProperties() {
           JSONObject ret = new JSONObject();
+          if (!awaitInitialization()) return ret;
           mPersistentIdentity.addSuperPropertiesToObject(ret, null);
           return ret;
       }
@@ -460,6 +800,7 @@ public class HevoAPI {
      * @see #identify(String)
      */
     public String getDistinctId() {
+        if (!awaitInitialization()) return null;
         return mPersistentIdentity.getEventsDistinctId();
      }
 
@@ -481,6 +822,15 @@ public class HevoAPI {
      * See also {@link #registerSuperProperties(org.json.JSONObject)}
      */
     public void registerSuperPropertiesMap(Map<String, Object> superProperties) {
+        if (shouldDefer()) {
+            final Map<String, Object> snapshot = null == superProperties ? null : new HashMap<String, Object>(superProperties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperPropertiesMap(snapshot);
+                }
+            })) return;
+        }
         if (hasOptedOutTracking()) return;
         if (null == superProperties) {
             HLog.e(LOGTAG, "registerSuperPropertiesMap does not accept null properties");
@@ -513,6 +863,15 @@ public class HevoAPI {
      * @see #clearSuperProperties()
      */
     public void registerSuperProperties(JSONObject superProperties) {
+        if (shouldDefer()) {
+            final JSONObject snapshot = copyOf(superProperties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperProperties(snapshot);
+                }
+            })) return;
+        }
         if (hasOptedOutTracking()) return;
         mPersistentIdentity.registerSuperProperties(superProperties);
         this.track(ReservedEvents.INSTALLATION, new JSONObject(), false);
@@ -528,7 +887,13 @@ public class HevoAPI {
      * @param superPropertyName name of the property to unregister
      * @see #registerSuperProperties(JSONObject)
      */
-    public void unregisterSuperProperty(String superPropertyName) {
+    public void unregisterSuperProperty(final String superPropertyName) {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                unregisterSuperProperty(superPropertyName);
+            }
+        })) return;
         if (hasOptedOutTracking()) return;
         mPersistentIdentity.unregisterSuperProperty(superPropertyName);
         this.track(ReservedEvents.INSTALLATION, new JSONObject(), false);
@@ -546,6 +911,15 @@ public class HevoAPI {
      * See also {@link #registerSuperPropertiesOnce(org.json.JSONObject)}
      */
     public void registerSuperPropertiesOnceMap(Map<String, Object> superProperties) {
+        if (shouldDefer()) {
+            final Map<String, Object> snapshot = null == superProperties ? null : new HashMap<String, Object>(superProperties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperPropertiesOnceMap(snapshot);
+                }
+            })) return;
+        }
         if (hasOptedOutTracking()) return;
         if (null == superProperties) {
             HLog.e(LOGTAG, "registerSuperPropertiesOnceMap does not accept null properties");
@@ -569,6 +943,15 @@ public class HevoAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void registerSuperPropertiesOnce(JSONObject superProperties) {
+        if (shouldDefer()) {
+            final JSONObject snapshot = copyOf(superProperties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    registerSuperPropertiesOnce(snapshot);
+                }
+            })) return;
+        }
         if (hasOptedOutTracking()) return;
         mPersistentIdentity.registerSuperPropertiesOnce(superProperties);
         this.track(ReservedEvents.INSTALLATION, new JSONObject(), false);
@@ -585,6 +968,12 @@ public class HevoAPI {
      * @see #registerSuperProperties(JSONObject)
      */
     public void clearSuperProperties() {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                clearSuperProperties();
+            }
+        })) return;
         mPersistentIdentity.clearSuperProperties();
         this.track(ReservedEvents.INSTALLATION, new JSONObject(), false);
         mPersistentIdentity.resetSuperProperties();
@@ -599,7 +988,13 @@ public class HevoAPI {
      *
      * @param update A function from one set of super properties to another. The update should not return null.
      */
-    public void updateSuperProperties(SuperPropertyUpdate update) {
+    public void updateSuperProperties(final SuperPropertyUpdate update) {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                updateSuperProperties(update);
+            }
+        })) return;
         if (hasOptedOutTracking()) return;
         mPersistentIdentity.updateSuperProperties(update);
         this.track(ReservedEvents.INSTALLATION, new JSONObject(), false);
@@ -610,6 +1005,12 @@ public class HevoAPI {
      * Will not clear referrer information.
      */
     public void reset() {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                reset();
+            }
+        })) return;
         // Will clear distinct_ids, superProperties, notifications, experiments,
         // and waiting People Analytics properties. Will have no effect
         // on messages already queued to send with AnalyticsMessages.
@@ -626,6 +1027,7 @@ public class HevoAPI {
      * of the host application, and are guaranteed not to change while the app is running.
      */
     public Map<String, String> getDeviceInfo() {
+        if (!awaitInitialization()) return Collections.emptyMap();
         return mDeviceInfo;
     }
 
@@ -637,6 +1039,12 @@ public class HevoAPI {
      * This method will also remove any user-related information from the device.
      */
     public void optOutTracking() {
+        if (!mInitialized && deferred(new Runnable() {
+            @Override
+            public void run() {
+                optOutTracking();
+            }
+        })) return;
         getAnalyticsMessages().emptyTrackingQueues();
         mPersistentIdentity.clearPreferences();
         synchronized (mEventTimings) {
@@ -689,7 +1097,16 @@ public class HevoAPI {
      *
      * See also {@link #optInTracking()} and {@link #optOutTracking()}.
      */
-    public void optInTracking(String distinctId, JSONObject properties) {
+    public void optInTracking(final String distinctId, JSONObject properties) {
+        if (shouldDefer()) {
+            final JSONObject snapshot = copyOf(properties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    optInTracking(distinctId, snapshot);
+                }
+            })) return;
+        }
         mPersistentIdentity.setOptOutTracking(false);
         if (distinctId != null) {
             identify(distinctId);
@@ -703,6 +1120,8 @@ public class HevoAPI {
      * @return true if user has opted out from tracking. Defaults to false.
      */
     public boolean hasOptedOutTracking() {
+        // Nothing is tracked by an instance that failed to initialize
+        if (!awaitInitialization()) return true;
         return mPersistentIdentity.getOptOutTracking();
     }
 
@@ -739,6 +1158,7 @@ public class HevoAPI {
      * @return True if the app is running in the foreground.
      */
     public boolean isAppInForeground() {
+        awaitInitialization();
         if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             if (mHevoActivityLifecycleCallbacks != null) {
                 return mHevoActivityLifecycleCallbacks.isInForeground();
@@ -751,6 +1171,8 @@ public class HevoAPI {
     }
 
     void onBackground() {
+        mMessages.flushAggregates();
+        trackThrottleSummary();
         flush();
     }
 
@@ -787,14 +1209,10 @@ public class HevoAPI {
             }
         };
 
-        final String prefsName = "com.hevodata.android.HevoAPI_";
-        final Future<SharedPreferences> storedPreferences = sPrefsLoader.loadPreferences(context, prefsName, listener);
-
-        final String timeEventsPrefsName = "com.hevodata.android.HevoAPI.TimeEvents_";
-        final Future<SharedPreferences> timeEventsPrefs = sPrefsLoader.loadPreferences(context, timeEventsPrefsName, null);
-
-        final String hevoPrefsName = "com.hevodata.android.Hevo";
-        final Future<SharedPreferences> hevoPrefs = sPrefsLoader.loadPreferences(context, hevoPrefsName, null);
+        final boolean mapped = mConfig.getMappedPreferences();
+        final Future<SharedPreferences> storedPreferences = sPrefsLoader.loadPreferences(context, STORED_PREFS_NAME, listener, mapped);
+        final Future<SharedPreferences> timeEventsPrefs = sPrefsLoader.loadPreferences(context, TIME_EVENTS_PREFS_NAME, null, mapped);
+        final Future<SharedPreferences> hevoPrefs = sPrefsLoader.loadPreferences(context, HEVO_PREFS_NAME, null, mapped);
 
         return new PersistentIdentity(referrerPreferences, storedPreferences, timeEventsPrefs, hevoPrefs);
     }
@@ -809,11 +1227,38 @@ public class HevoAPI {
         mMessages.postToServer();
     }
 
-    protected void track(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+    protected void track(final String eventName, JSONObject properties, final boolean isAutomaticEvent) {
+        // Before anything is copied, since many events may be dropped
+        if (!mEventThrottle.shouldTrack(eventName)) {
+            return;
+        }
+        trackAfterThrottle(eventName, properties, isAutomaticEvent);
+    }
+
+    private void trackAfterThrottle(final String eventName, JSONObject properties, final boolean isAutomaticEvent) {
+        // Events queued during initialization keep the time they were tracked at
+        final long eventTime = System.currentTimeMillis();
+        if (shouldDefer()) {
+            final JSONObject snapshot = copyOf(properties);
+            if (deferred(new Runnable() {
+                @Override
+                public void run() {
+                    track(eventName, snapshot, null, isAutomaticEvent, eventTime);
+                }
+            })) return;
+        }
+        track(eventName, properties, null, isAutomaticEvent, eventTime);
+    }
+
+    private void track(String eventName, JSONObject properties, EventBuilder typedProperties, boolean isAutomaticEvent, long eventTime) {
         if (hasOptedOutTracking() || !mConfig.getCaptureAutomaticEvents()) {
             return;
         }
 
+        if (mEventThrottle.isSummaryDue(System.currentTimeMillis())) {
+            trackThrottleSummary();
+        }
+
         final Long eventBegin;
         synchronized (mEventTimings) {
             eventBegin = mEventTimings.get(eventName);
@@ -824,18 +1269,14 @@ public class HevoAPI {
         try {
             final JSONObject messageProps = new JSONObject();
 
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
-            }
+            // Written into the event by the worker, under any property of the same name
+            final ReferrerProperties referrer = mPersistentIdentity.getReferrer();
 
             mPersistentIdentity.addSuperPropertiesToObject(messageProps, eventName);
 
             // Don't allow super properties or referral properties to override these fields,
             // but DO allow the caller to override them in their given properties.
-            final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
+            final double timeSecondsDouble = eventTime / 1000.0;
             final long timeSeconds = (long) timeSecondsDouble;
             messageProps.put("time", timeSeconds);
             messageProps.put("distinct_id", getDistinctId());
@@ -857,22 +1298,180 @@ public class HevoAPI {
             }
 
             final AnalyticsMessages.EventDescription eventDescription =
-                    new AnalyticsMessages.EventDescription(eventName, messageProps,
-                            isAutomaticEvent, mSessionMetadata.getMetadataForEvent());
+                    new AnalyticsMessages.EventDescription(eventName, messageProps, typedProperties,
+                            referrer.size() == 0 ? null : referrer, isAutomaticEvent, mSessionMetadata.nextEvent());
             mMessages.eventsMessage(eventDescription);
         } catch (final JSONException e) {
             HLog.e(LOGTAG, "Exception tracking event " + eventName, e);
         }
     }
 
+    // Queues a call made before initialization has finished, to be replayed in order once it
+    // has. Returns false if the call should go ahead now.
+    private boolean deferred(Runnable call) {
+        if (mInitialized || mInitializingThread == Thread.currentThread()) {
+            return false;
+        }
+        synchronized (mPendingCalls) {
+            if (mInitialized) {
+                return false;
+            }
+            if (!mInitFailed) {
+                mPendingCalls.add(call);
+            }
+            return true;
+        }
+    }
+
+    // Drops the queued calls and makes every later one do nothing, since the state they need is
+    // missing. The next getInstance makes a new instance, which tries again.
+    private void failInitialization() {
+        synchronized (mPendingCalls) {
+            mInitFailed = true;
+            mPendingCalls.clear();
+        }
+        synchronized (sInstance) {
+            if (sInstance.get(mContext) == this) {
+                sInstance.remove(mContext);
+            }
+        }
+        mInitializedLatch.countDown();
+    }
+
+    // Replays the calls queued by deferred(), including any made while replaying, and only
+    // then lets further calls through, so that they all run in the order they were made.
+    private void replayPendingCalls() {
+        try {
+            while (true) {
+                final List<Runnable> calls;
+                synchronized (mPendingCalls) {
+                    if (mPendingCalls.isEmpty()) {
+                        mInitialized = true;
+                        break;
+                    }
+                    calls = new ArrayList<Runnable>(mPendingCalls);
+                    mPendingCalls.clear();
+                }
+                for (final Runnable call : calls) {
+                    // A bad call would have thrown to the app, here it mustn't stop the ones after it
+                    try {
+                        call.run();
+                    } catch (final RuntimeException e) {
+                        HLog.e(LOGTAG, "Exception in a call made before HevoAPI was initialized", e);
+                    }
+                }
+            }
+        } finally {
+            synchronized (mPendingCalls) {
+                mInitialized = true;
+            }
+            mInitializedLatch.countDown();
+        }
+    }
+
+    // Whether a call made now has to be queued by deferred(). Calls replayed on the initializing
+    // thread go ahead, so the copies made for queueing are only made once.
+    private boolean shouldDefer() {
+        return !mInitialized && mInitializingThread != Thread.currentThread();
+    }
+
+    // For the methods that return state, which can't be queued. Returns false if initialization
+    // failed, in which case they return a default instead.
+    private boolean awaitInitialization() {
+        if (mInitialized || mInitializingThread == Thread.currentThread()) {
+            return true;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mInitializedLatch.await();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return !mInitFailed;
+    }
+
+    // Shallow copy, so that callers changing their object after a queued call don't change the call
+    private static JSONObject copyOf(JSONObject object) {
+        if (null == object) {
+            return null;
+        }
+        final JSONObject ret = new JSONObject();
+        for (final Iterator<?> iter = object.keys(); iter.hasNext();) {
+            final String key = (String) iter.next();
+            try {
+                ret.put(key, object.opt(key));
+            } catch (final JSONException e) {
+                HLog.e(LOGTAG, "Could not copy property " + key, e);
+            }
+        }
+        return ret;
+    }
+
+    private void trackThrottleSummary() {
+        try {
+            final JSONObject summary = mEventThrottle.takeSummary(System.currentTimeMillis());
+            if (null != summary) {
+                track(ReservedEvents.THROTTLE_SUMMARY, summary, false);
+            }
+        } catch (final JSONException e) {
+            HLog.e(LOGTAG, "Exception tracking the summary of sampled out events", e);
+        }
+    }
+
+    // The reflective lookups App Links support needs, done once per process the first time they're used.
+    // The methods are null if the library providing them isn't there.
+    private static class LocalBroadcastManagerMethods {
+        static final Method GET_INSTANCE;
+        static final Method REGISTER_RECEIVER;
+
+        static {
+            Method getInstance = null;
+            Method registerReceiver = null;
+            try {
+                final Class<?> clazz = Class.forName("android.support.v4.content.LocalBroadcastManager");
+                getInstance = clazz.getMethod("getInstance", Context.class);
+                registerReceiver = clazz.getMethod("registerReceiver", BroadcastReceiver.class, IntentFilter.class);
+            } catch (final ClassNotFoundException e) {
+                HLog.d(APP_LINKS_LOGTAG, "To enable App Links tracking android.support.v4 must be installed: " + e.getMessage());
+            } catch (final NoSuchMethodException e) {
+                HLog.d(APP_LINKS_LOGTAG, "To enable App Links tracking android.support.v4 must be installed: " + e.getMessage());
+            }
+            GET_INSTANCE = null == registerReceiver ? null : getInstance;
+            REGISTER_RECEIVER = null == getInstance ? null : registerReceiver;
+        }
+    }
+
+    private static class BoltsAppLinksMethods {
+        static final Method GET_TARGET_URL_FROM_INBOUND_INTENT;
+
+        static {
+            Method getTargetUrlFromInboundIntent = null;
+            try {
+                final Class<?> clazz = Class.forName("bolts.AppLinks");
+                getTargetUrlFromInboundIntent = clazz.getMethod("getTargetUrlFromInboundIntent", Context.class, Intent.class);
+            } catch (final ClassNotFoundException e) {
+                HLog.d(APP_LINKS_LOGTAG, "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
+            } catch (final NoSuchMethodException e) {
+                HLog.d(APP_LINKS_LOGTAG, "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
+            }
+            GET_TARGET_URL_FROM_INBOUND_INTENT = getTargetUrlFromInboundIntent;
+        }
+    }
+
     private static void registerAppLinksListeners(Context context, final HevoAPI hevo) {
         // Register a BroadcastReceiver to receive com.parse.bolts.measurement_event and track a call to hevo
+        if (null == LocalBroadcastManagerMethods.REGISTER_RECEIVER) {
+            return;
+        }
         try {
-            final Class<?> clazz = Class.forName("android.support.v4.content.LocalBroadcastManager");
-            final Method methodGetInstance = clazz.getMethod("getInstance", Context.class);
-            final Method methodRegisterReceiver = clazz.getMethod("registerReceiver", BroadcastReceiver.class, IntentFilter.class);
-            final Object localBroadcastManager = methodGetInstance.invoke(null, context);
-            methodRegisterReceiver.invoke(localBroadcastManager, new BroadcastReceiver() {
+            final Object localBroadcastManager = LocalBroadcastManagerMethods.GET_INSTANCE.invoke(null, context);
+            LocalBroadcastManagerMethods.REGISTER_RECEIVER.invoke(localBroadcastManager, new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final JSONObject properties = new JSONObject();
@@ -891,10 +1490,6 @@ public class HevoAPI {
             }, new IntentFilter("com.parse.bolts.measurement_event"));
         } catch (final InvocationTargetException e) {
             HLog.d(APP_LINKS_LOGTAG, "Failed to invoke LocalBroadcastManager.registerReceiver() -- App Links tracking will not be enabled due to this exception", e);
-        } catch (final ClassNotFoundException e) {
-            HLog.d(APP_LINKS_LOGTAG, "To enable App Links tracking android.support.v4 must be installed: " + e.getMessage());
-        } catch (final NoSuchMethodException e) {
-            HLog.d(APP_LINKS_LOGTAG, "To enable App Links tracking android.support.v4 must be installed: " + e.getMessage());
         } catch (final IllegalAccessException e) {
             HLog.d(APP_LINKS_LOGTAG, "App Links tracking will not be enabled due to this exception: " + e.getMessage());
         }
@@ -905,17 +1500,15 @@ public class HevoAPI {
         // if the intent is the result of an App Link, it'll trigger al_nav_in
         // https://github.com/BoltsFramework/Bolts-Android/blob/1.1.2/Bolts/src/bolts/AppLinks.java#L86
         if (context instanceof Activity) {
+            final Method getTargetUrlFromInboundIntent = BoltsAppLinksMethods.GET_TARGET_URL_FROM_INBOUND_INTENT;
+            if (null == getTargetUrlFromInboundIntent) {
+                return;
+            }
             try {
-                final Class<?> clazz = Class.forName("bolts.AppLinks");
                 final Intent intent = ((Activity) context).getIntent();
-                final Method getTargetUrlFromInboundIntent = clazz.getMethod("getTargetUrlFromInboundIntent", Context.class, Intent.class);
                 getTargetUrlFromInboundIntent.invoke(null, context, intent);
             } catch (final InvocationTargetException e) {
                 HLog.d(APP_LINKS_LOGTAG, "Failed to invoke bolts.AppLinks.getTargetUrlFromInboundIntent() -- Unable to detect inbound App Links", e);
-            } catch (final ClassNotFoundException e) {
-                HLog.d(APP_LINKS_LOGTAG, "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
-            } catch (final NoSuchMethodException e) {
-                HLog.d(APP_LINKS_LOGTAG, "Please install the Bolts library >= 1.1.2 to track App Links: " + e.getMessage());
             } catch (final IllegalAccessException e) {
                 HLog.d(APP_LINKS_LOGTAG, "Unable to detect inbound App Links: " + e.getMessage());
             }
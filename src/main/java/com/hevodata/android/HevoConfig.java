@@ -41,6 +41,28 @@ import javax.net.ssl.SSLSocketFactory;
  *          queue based on the storage capacity of the device, but will always allow queing below this limit. Higher values
  *          will take up more storage even when user storage is very full.</dd>
  *
+ *     <dt>com.hevodata.android.MaximumQueueSize</dt>
+ *     <dd>An integer count of messages, the maximum number of messages kept in the persistent queue. When the queue
+ *          grows beyond this, the oldest automatic events are evicted first, then the oldest tracked events. Defaults to 20000.</dd>
+ *
+ *     <dt>com.hevodata.android.MaximumDatabaseSize</dt>
+ *     <dd>An integer number of bytes, the maximum space the persistent queue may use before the oldest
+ *          messages are evicted as described for MaximumQueueSize. Defaults to 50 Mb.</dd>
+ *
+ *     <dt>com.hevodata.android.EventStore</dt>
+ *     <dd>A string, the storage used for the persistent queue. "sqlite" (the default) keeps events in a SQLite
+ *          database. "mmap" keeps them in a memory-mapped append-only log, which is cheaper per event for apps
+ *          that track very high volumes, but always evicts the oldest event first regardless of type.</dd>
+ *
+ *     <dt>com.hevodata.android.MappedPreferences</dt>
+ *     <dd>A boolean value. If true, the distinct id, super properties and other state of the library are kept in
+ *          memory-mapped files, where each change is appended, rather than in SharedPreferences XML files which are
+ *          rewritten whole on every change. Existing values are copied over the first time. Defaults to false.</dd>
+ *
+ *     <dt>com.hevodata.android.AggregationWindow</dt>
+ *     <dd>An integer number of milliseconds, how long values passed to HevoAPI.aggregate are accumulated before
+ *          their rolled up events are queued. Defaults to 60000 (one minute).</dd>
+ *
  *     <dt>com.hevodata.android.DisableAppOpenEvent</dt>
  *     <dd>A boolean value. If true, do not send an "$app_open" event when the HevoAPI object is created for the first time. Defaults to true - the $app_open event will not be sent by default.</dd>
  *
@@ -60,6 +82,11 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dd>A boolean value. If true, in-app notifications won't be marked as seen. Defaults to false.</dd>
  * </dl>
  *
+ * Apps that would rather not have the library read their manifest, which costs a call to the
+ * package manager on startup, can instead build the same options in code with {@link Builder},
+ * and pass the result to {@link #setInstance(HevoConfig)} before their first call to
+ * HevoAPI.getInstance.
+ *
  */
 public class HevoConfig {
 
@@ -67,6 +94,10 @@ public class HevoConfig {
 
     public static boolean DEBUG = false;
 
+    // Values of the com.hevodata.android.EventStore option
+    public static final String EVENT_STORE_SQLITE = "sqlite";
+    public static final String EVENT_STORE_MAPPED_LOG = "mmap";
+
     // Name for persistent storage of app referral SharedPreferences
     static final String REFERRER_PREFS_NAME = "com.hevodata.android.ReferralInfo";
 
@@ -77,9 +108,151 @@ public class HevoConfig {
                 final Context appContext = context.getApplicationContext();
                 sInstance = readConfig(appContext);
             }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Makes config the configuration returned by {@link #getInstance(Context)}, so that the
+     * &lt;meta-data&gt; tags in AndroidManifest.xml are never read. Only takes effect if called
+     * before the configuration is first needed, which is at latest the first call to
+     * HevoAPI.getInstance.
+     *
+     * <p>{@link HevoAPI#warmUp(Context)}, and so {@link HevoInitProvider}, only use the
+     * configuration once the main thread is done with the Application's onCreate, so this can
+     * be called from there. {@link HevoAPI#preloadPreferences(Context)} uses it right away.</p>
+     *
+     * @param config usually built with {@link Builder}
+     * @return false if a configuration was already in use, in which case it is kept
+     */
+    public static boolean setInstance(HevoConfig config) {
+        synchronized (sInstanceLock) {
+            if (null != sInstance) {
+                HLog.w(LOGTAG, "HevoConfig.setInstance called after the configuration was already in use, ignoring it");
+                return false;
+            }
+            sInstance = config;
         }
+        return true;
+    }
 
-        return sInstance;
+    // The MappedPreferences option as it will most likely be, without settling the configuration
+    // to find out: from setInstance or getInstance if either was called, or else from the manifest.
+    static boolean peekMappedPreferences(Context appContext) {
+        synchronized (sInstanceLock) {
+            if (null != sInstance) {
+                return sInstance.getMappedPreferences();
+            }
+        }
+        try {
+            final ApplicationInfo appInfo = appContext.getPackageManager().getApplicationInfo(appContext.getPackageName(), PackageManager.GET_META_DATA);
+            return null != appInfo.metaData && appInfo.metaData.getBoolean("com.hevodata.android.MappedPreferences", false);
+        } catch (final NameNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds a HevoConfig in code rather than from the &lt;meta-data&gt; tags of
+     * AndroidManifest.xml. Each setter corresponds to the option of the same name described
+     * in {@link HevoConfig}, and options that aren't set take the same defaults.
+     *
+     * {@code
+     * <pre>
+     *     HevoConfig.setInstance(new HevoConfig.Builder()
+     *             .setIntegrationEndpoint("https://...")
+     *             .setFlushInterval(30 * 1000)
+     *             .build());
+     * </pre>
+     * }
+     */
+    public static class Builder {
+        public Builder setEnableDebugLogging(boolean enableDebugLogging) {
+            mOptions.putBoolean("com.hevodata.android.EnableDebugLogging", enableDebugLogging);
+            return this;
+        }
+
+        public Builder setBulkUploadLimit(int bulkUploadLimit) {
+            mOptions.putInt("com.hevodata.android.BulkUploadLimit", bulkUploadLimit);
+            return this;
+        }
+
+        public Builder setFlushInterval(int flushIntervalMillis) {
+            mOptions.putInt("com.hevodata.android.FlushInterval", flushIntervalMillis);
+            return this;
+        }
+
+        public Builder setDataExpiration(long dataExpirationMillis) {
+            mOptions.putLong("com.hevodata.android.DataExpiration", dataExpirationMillis);
+            return this;
+        }
+
+        public Builder setMinimumDatabaseLimit(int minimumDatabaseLimit) {
+            mOptions.putInt("com.hevodata.android.MinimumDatabaseLimit", minimumDatabaseLimit);
+            return this;
+        }
+
+        public Builder setMaximumQueueSize(int maximumQueueSize) {
+            mOptions.putInt("com.hevodata.android.MaximumQueueSize", maximumQueueSize);
+            return this;
+        }
+
+        public Builder setMaximumDatabaseSize(int maximumDatabaseSize) {
+            mOptions.putInt("com.hevodata.android.MaximumDatabaseSize", maximumDatabaseSize);
+            return this;
+        }
+
+        // One of EVENT_STORE_SQLITE or EVENT_STORE_MAPPED_LOG
+        public Builder setEventStore(String eventStore) {
+            mOptions.putString("com.hevodata.android.EventStore", eventStore);
+            return this;
+        }
+
+        public Builder setMappedPreferences(boolean mappedPreferences) {
+            mOptions.putBoolean("com.hevodata.android.MappedPreferences", mappedPreferences);
+            return this;
+        }
+
+        public Builder setAggregationWindow(int aggregationWindowMillis) {
+            mOptions.putInt("com.hevodata.android.AggregationWindow", aggregationWindowMillis);
+            return this;
+        }
+
+        public Builder setDisableAppOpenEvent(boolean disableAppOpenEvent) {
+            mOptions.putBoolean("com.hevodata.android.DisableAppOpenEvent", disableAppOpenEvent);
+            return this;
+        }
+
+        public Builder setCaptureAutomaticEvents(boolean captureAutomaticEvents) {
+            mOptions.putBoolean("com.hevodata.android.CaptureAutomaticEvents", captureAutomaticEvents);
+            return this;
+        }
+
+        public Builder setIntegrationEndpoint(String integrationEndpoint) {
+            mOptions.putString("com.hevodata.android.IntegrationEndpoint", integrationEndpoint);
+            return this;
+        }
+
+        public Builder setMinimumSessionDuration(int minimumSessionDurationMillis) {
+            mOptions.putInt("com.hevodata.android.MinimumSessionDuration", minimumSessionDurationMillis);
+            return this;
+        }
+
+        public Builder setSessionTimeoutDuration(int sessionTimeoutDurationMillis) {
+            mOptions.putInt("com.hevodata.android.SessionTimeoutDuration", sessionTimeoutDurationMillis);
+            return this;
+        }
+
+        public Builder setTestMode(boolean testMode) {
+            mOptions.putBoolean("com.hevodata.android.TestMode", testMode);
+            return this;
+        }
+
+        public HevoConfig build() {
+            return new HevoConfig(new Bundle(mOptions), null);
+        }
+
+        private final Bundle mOptions = new Bundle();
     }
 
     /**
@@ -107,6 +280,7 @@ public class HevoConfig {
      */
     public synchronized void setSSLSocketFactory(SSLSocketFactory factory) {
         mSSLSocketFactory = factory;
+        mSSLSocketFactoryResolved = true;
     }
 
     /**
@@ -135,20 +309,6 @@ public class HevoConfig {
     }
 
     HevoConfig(Bundle metaData, Context context) {
-
-        // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
-        // thing to do, and some other third party libraries change the
-        SSLSocketFactory foundSSLFactory;
-        try {
-            final SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, null, null);
-            foundSSLFactory = sslContext.getSocketFactory();
-        } catch (final GeneralSecurityException e) {
-            HLog.i("HevoAPI.Conf", "System has no SSL support. Built-in events editor will not be available", e);
-            foundSSLFactory = null;
-        }
-        mSSLSocketFactory = foundSSLFactory;
-
         DEBUG = metaData.getBoolean("com.hevodata.android.EnableDebugLogging", false);
         if (DEBUG) {
             HLog.setLevel(HLog.VERBOSE);
@@ -157,12 +317,19 @@ public class HevoConfig {
         mBulkUploadLimit = metaData.getInt("com.hevodata.android.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("com.hevodata.android.FlushInterval", 60 * 1000); // one minute default
         mMinimumDatabaseLimit = metaData.getInt("com.hevodata.android.MinimumDatabaseLimit", 20 * 1024 * 1024); // 20 Mb
+        mMaximumQueueSize = metaData.getInt("com.hevodata.android.MaximumQueueSize", 20000); // 20000 records
+        mMaximumDatabaseSize = metaData.getInt("com.hevodata.android.MaximumDatabaseSize", 50 * 1024 * 1024); // 50 Mb
+        mMappedPreferences = metaData.getBoolean("com.hevodata.android.MappedPreferences", false);
+        mAggregationWindow = metaData.getInt("com.hevodata.android.AggregationWindow", 60 * 1000); // one minute default
         mDisableAppOpenEvent = metaData.getBoolean("com.hevodata.android.DisableAppOpenEvent", true);
         mMinSessionDuration = metaData.getInt("com.hevodata.android.MinimumSessionDuration", 10 * 1000); // 10 seconds
         mSessionTimeoutDuration = metaData.getInt("com.hevodata.android.SessionTimeoutDuration", Integer.MAX_VALUE); // no timeout by default
         mTestMode = metaData.getBoolean("com.hevodata.android.TestMode", false);
         mCaptureAutomaticEvents = metaData.getBoolean("com.hevodata.android.CaptureAutomaticEvents", true);
 
+        final String eventStore = metaData.getString("com.hevodata.android.EventStore");
+        mEventStore = EVENT_STORE_MAPPED_LOG.equals(eventStore) ? EVENT_STORE_MAPPED_LOG : EVENT_STORE_SQLITE;
+
         long defaultDataExpiration = 1000 * 60 * 60 * 24 * 5; // 5 days default
         mDataExpiration = metaData.getLong("com.hevodata.android.DataExpiration", defaultDataExpiration);
 
@@ -201,6 +368,21 @@ public class HevoConfig {
 
     public int getMinimumDatabaseLimit() { return mMinimumDatabaseLimit; }
 
+    // Storage backend for the persistent queue, one of EVENT_STORE_SQLITE or EVENT_STORE_MAPPED_LOG
+    public String getEventStore() { return mEventStore; }
+
+    // Max number of records kept in the queue before the oldest are evicted.
+    public int getMaximumQueueSize() { return mMaximumQueueSize; }
+
+    // Max bytes the queue may use before the oldest records are evicted.
+    public int getMaximumDatabaseSize() { return mMaximumDatabaseSize; }
+
+    // Whether the library's own state is kept in MappedPreferences rather than SharedPreferences XML files.
+    public boolean getMappedPreferences() { return mMappedPreferences; }
+
+    // Milliseconds values passed to HevoAPI.aggregate are accumulated for before being queued.
+    public int getAggregationWindow() { return mAggregationWindow; }
+
     public boolean getDisableAppOpenEvent() {
         return mDisableAppOpenEvent;
     }
@@ -233,10 +415,30 @@ public class HevoConfig {
     // This method is thread safe, and assumes that SSLSocketFactory is also thread safe
     // (At this writing, all HttpsURLConnections in the framework share a single factory,
     // so this is pretty safe even if the docs are ambiguous)
+    //
+    // Unless one was set, the default factory is only created here, by the worker thread on
+    // its first upload, since initializing the TLS provider is slow on some devices.
     public synchronized SSLSocketFactory getSSLSocketFactory() {
+        if (!mSSLSocketFactoryResolved) {
+            mSSLSocketFactory = createDefaultSSLSocketFactory();
+            mSSLSocketFactoryResolved = true;
+        }
         return mSSLSocketFactory;
     }
 
+    // By default, we use a clean, FACTORY default SSLSocket. In general this is the right
+    // thing to do, and some other third party libraries change the
+    private static SSLSocketFactory createDefaultSSLSocketFactory() {
+        try {
+            final SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            return sslContext.getSocketFactory();
+        } catch (final GeneralSecurityException e) {
+            HLog.i(LOGTAG, "System has no SSL support. Built-in events editor will not be available", e);
+            return null;
+        }
+    }
+
     // This method is thread safe, and assumes that OfflineMode is also thread safe
     public synchronized OfflineMode getOfflineMode() {
         return mOfflineMode;
@@ -266,6 +468,11 @@ public class HevoConfig {
                 "    FlushInterval " + getFlushInterval() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
                 "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                "    MaximumQueueSize " + getMaximumQueueSize() + "\n" +
+                "    MaximumDatabaseSize " + getMaximumDatabaseSize() + "\n" +
+                "    EventStore " + getEventStore() + "\n" +
+                "    MappedPreferences " + getMappedPreferences() + "\n" +
+                "    AggregationWindow " + getAggregationWindow() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
                 "    TestMode " + getTestMode() + "\n" +
@@ -278,9 +485,14 @@ public class HevoConfig {
     private final int mBulkUploadLimit;
     private final int mFlushInterval;
     private final int mMinimumDatabaseLimit;
+    private final int mMaximumQueueSize;
+    private final int mMaximumDatabaseSize;
+    private final int mAggregationWindow;
+    private final boolean mMappedPreferences;
     private final int mMinSessionDuration;
     private final int mSessionTimeoutDuration;
     private final long mDataExpiration;
+    private final String mEventStore;
     private final boolean mTestMode;
     private final boolean mDisableAppOpenEvent;
     private final boolean mCaptureAutomaticEvents;
@@ -288,6 +500,7 @@ public class HevoConfig {
 
     // Mutable, with synchronized accessor and mutator
     private SSLSocketFactory mSSLSocketFactory;
+    private boolean mSSLSocketFactoryResolved;
     private OfflineMode mOfflineMode;
 
     private static HevoConfig sInstance;
@@ -0,0 +1,62 @@
+package com.hevodata.android;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Optional ContentProvider that warms up the library when the app process starts, before any of
+ * its Activities or its Application's onCreate run, so that the first call to
+ * {@link HevoAPI#getInstance(android.content.Context)} and the first event tracked are as cheap
+ * as the ones after. See {@link HevoAPI#warmUp(android.content.Context)}.
+ *
+ * <p>It doesn't serve any data. To enable it, add a clause like the following to the
+ * &lt;application&gt; tag of your AndroidManifest.xml, with your own package name in
+ * android:authorities.</p>
+ *
+ * <pre>
+ * {@code
+ * <provider android:name="com.hevodata.android.HevoInitProvider"
+ *           android:authorities="your.package.name.hevoinitprovider"
+ *           android:exported="false" />
+ * }
+ * </pre>
+ *
+ * <p>It can be used together with {@link HevoConfig#setInstance(HevoConfig)} called from your
+ * Application's onCreate, the parts of the warm up that need the configuration only start once
+ * onCreate has returned.</p>
+ */
+public class HevoInitProvider extends ContentProvider {
+    @Override
+    public boolean onCreate() {
+        // Runs on the main thread, so everything is handed off to the background
+        HevoAPI.warmUp(getContext());
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,136 @@
+package com.hevodata.android;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size log-linear histogram of non-negative long values.
+ *
+ * <p>Values below {@link #SUB_BUCKETS} get a bucket each. Above that every power of two
+ * is split into SUB_BUCKETS equal buckets, so any recorded value is known to within
+ * 12.5% while the whole range up to 2^{@link #MAX_EXPONENT} fits in a few hundred longs.
+ * Larger values are counted in the last bucket.
+ *
+ * <p>Recording never allocates. Only a single thread may record into an instance, for us the
+ * Hevo worker thread, but any thread may read it, and then sees a recent state of it without
+ * taking any locks.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    Histogram(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+        mCounts = new AtomicLongArray(BUCKET_COUNT);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        // With a single writer these don't need to be atomic, only visible to readers
+        final int bucket = bucketFor(value);
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        mTotal += value;
+        if (value > mMax) {
+            mMax = value;
+        }
+        mCount++;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getTotal() {
+        return mTotal;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the value at the given percentile,
+     * or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * @return the summary of the values recorded so far, for {@link PipelineStats}
+     */
+    public PipelineStats.Distribution snapshot() {
+        return new PipelineStats.Distribution(mCount, mTotal, mMax,
+                getValueAtPercentile(50), getValueAtPercentile(90), getValueAtPercentile(99));
+    }
+
+    /**
+     * Describes the histogram, with every non-empty bucket, for diagnosis.
+     */
+    public String dump() {
+        final StringBuilder ret = new StringBuilder();
+        ret.append(mName).append(" (").append(mUnit).append("): count ").append(mCount)
+                .append(", p50 ").append(getValueAtPercentile(50))
+                .append(", p90 ").append(getValueAtPercentile(90))
+                .append(", p99 ").append(getValueAtPercentile(99))
+                .append(", max ").append(mMax);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long bucketCount = mCounts.get(i);
+            if (bucketCount != 0) {
+                ret.append("\n    [").append(lowerBound(i)).append(", ").append(upperBound(i)).append("] ").append(bucketCount);
+            }
+        }
+        return ret.toString();
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        final long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(bucket + 1) - 1;
+    }
+
+    private final String mName;
+    private final String mUnit;
+    private final AtomicLongArray mCounts;
+    private volatile long mCount;
+    private volatile long mTotal;
+    private volatile long mMax;
+}
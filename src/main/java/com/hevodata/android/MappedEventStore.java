@@ -0,0 +1,621 @@
+package com.hevodata.android;
+
+import android.content.Context;
+
+import com.hevodata.android.util.HLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped, append-only log of events waiting to be sent to Hevo.
+ *
+ * <p>Records are appended to fixed size segment files, each named after the id of its
+ * first record. Every record is framed with its length and a CRC32, so a torn write at
+ * the end of the log is detected and dropped when the log is reopened. Sent records are
+ * never rewritten, instead a persisted cursor holds the id of the last consumed record
+ * and segments are deleted as soon as every record in them has been consumed. Automatic
+ * records skipped by a batch that excluded them are appended again when it is acknowledged.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used
+ * by a single thread.
+ */
+class MappedEventStore implements EventStore {
+    private static final String LOGTAG = "HevoAPI.EventLog";
+    private static final Map<Context, MappedEventStore> sInstances = new HashMap<>();
+
+    private static final String DIRECTORY_NAME = "com.hevodata.android.events";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+    private static final int BATCH_SIZE = 50;
+
+    // length (int), crc (int), created at (long), flags (byte)
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1;
+    private static final byte FLAG_AUTOMATIC = 1;
+
+    // consumed id (long), consumed id ^ CURSOR_MAGIC (long)
+    private static final int CURSOR_SIZE = 16;
+    private static final long CURSOR_MAGIC = 0x4865766f4c6f6721L;
+
+    MappedEventStore(Context context) {
+        this(new File(context.getFilesDir(), DIRECTORY_NAME), HevoConfig.getInstance(context));
+    }
+
+    MappedEventStore(File directory, HevoConfig config) {
+        mDirectory = directory;
+        mConfig = config;
+        mSegments = new ArrayList<>();
+        mCrc = new CRC32();
+        mScratch = new byte[1024];
+        mOpened = false;
+    }
+
+    public static MappedEventStore getInstance(Context context) {
+        synchronized (sInstances) {
+            final Context appContext = context.getApplicationContext();
+            MappedEventStore ret;
+            if (! sInstances.containsKey(appContext)) {
+                ret = new MappedEventStore(appContext);
+                sInstances.put(appContext, ret);
+            } else {
+                ret = sInstances.get(appContext);
+            }
+            return ret;
+        }
+    }
+
+    @Override
+    public int append(String event, boolean isAutomatic) {
+        if (!open()) {
+            return DB_UPDATE_ERROR;
+        }
+
+        try {
+            appendRecord(event.getBytes(UTF_8), System.currentTimeMillis(), isAutomatic ? FLAG_AUTOMATIC : 0);
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not add Hevo data to the event log.", e);
+            return DB_UPDATE_ERROR;
+        }
+
+        enforceQueueBounds();
+        return mCount;
+    }
+
+    @Override
+    public EventBatch peekBatch(boolean includeAutomatic) {
+        if (!open() || mCount == 0) {
+            return null;
+        }
+
+        final StringBuilder data = new StringBuilder("[");
+        int included = 0;
+        long lastId = -1;
+        try {
+            final Reader reader = new Reader();
+            while (included < BATCH_SIZE && reader.next()) {
+                if (includeAutomatic || !reader.isAutomatic()) {
+                    if (included > 0) {
+                        data.append(',');
+                    }
+                    data.append(reader.payload());
+                    included++;
+                    lastId = reader.id;
+                }
+            }
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not pull records for Hevo out of the event log. Waiting to send.", e);
+            return null;
+        }
+
+        if (included == 0) {
+            return null;
+        }
+        data.append(']');
+        return new EventBatch(String.valueOf(lastId), data.toString(), included, depth(includeAutomatic), includeAutomatic);
+    }
+
+    // Records can only be consumed in order, so when automatic events are excluded the
+    // automatic records up to the end of the batch are consumed along with the sent ones,
+    // and appended again at the end of the log to be sent later.
+    @Override
+    public void ack(EventBatch batch) {
+        if (!open()) {
+            return;
+        }
+
+        try {
+            final long last = Long.parseLong(batch.getLastId());
+            final Reader reader = new Reader();
+            final List<byte[]> skipped = new ArrayList<>();
+            final List<Long> skippedCreatedAt = new ArrayList<>();
+            int consumed = 0;
+            while (reader.peekId() <= last && reader.next()) {
+                if (!batch.includesAutomatic() && reader.isAutomatic()) {
+                    skipped.add(reader.payloadBytes());
+                    skippedCreatedAt.add(reader.createdAt);
+                }
+                consumed++;
+            }
+            // Appended before the cursor moves, so a crash in between duplicates them rather than losing them
+            for (int i = 0; i < skipped.size(); i++) {
+                appendRecord(skipped.get(i), skippedCreatedAt.get(i), FLAG_AUTOMATIC);
+            }
+            consume(reader, consumed);
+        } catch (final NumberFormatException e) {
+            HLog.e(LOGTAG, "Could not clean sent Hevo records, unexpected id " + batch.getLastId(), e);
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not clean sent Hevo records from the event log.", e);
+        }
+    }
+
+    @Override
+    public int depth(boolean includeAutomatic) {
+        if (!open()) {
+            return 0;
+        }
+        return includeAutomatic ? mCount : mCount - mAutomaticCount;
+    }
+
+    @Override
+    public int expire(long time, int maxRows) {
+        if (!open()) {
+            return 0;
+        }
+
+        int consumed = 0;
+        try {
+            // The log is in insertion order, so expired records are always at its head.
+            final Reader reader = new Reader();
+            while (consumed < maxRows && reader.next()) {
+                if (reader.createdAt > time) {
+                    reader.unread();
+                    break;
+                }
+                consumed++;
+            }
+            consume(reader, consumed);
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not clean timed-out Hevo records from the event log.", e);
+        }
+        return consumed;
+    }
+
+    @Override
+    public void purge() {
+        if (!open()) {
+            return;
+        }
+
+        for (final Segment segment : mSegments) {
+            segment.delete();
+        }
+        mSegments.clear();
+        mReadId = mNextId;
+        mReadOffset = 0;
+        mCount = 0;
+        mAutomaticCount = 0;
+        writeCursor(mReadId - 1);
+    }
+
+    // Consumed segments are deleted as soon as they are acknowledged, so there is never anything to vacuum.
+    @Override
+    public int vacuum(int maxPages) {
+        return 0;
+    }
+
+    @Override
+    public void deleteDB() {
+        mSegments.clear();
+        mCursor = null;
+        mOpened = false;
+
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    //////////////////////////////////////////////////
+
+    private boolean open() {
+        if (mOpened) {
+            return true;
+        }
+
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create directory " + mDirectory);
+            }
+
+            mCursor = map(new File(mDirectory, CURSOR_FILE_NAME), CURSOR_SIZE);
+            final long consumedId = mCursor.getLong(0);
+            final long lastConsumed = (consumedId ^ CURSOR_MAGIC) == mCursor.getLong(8) ? consumedId : -1;
+
+            mSegments.clear();
+            final File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX) && file.length() < RECORD_HEADER_SIZE) {
+                        // Left behind by a crash while the segment was being created
+                        file.delete();
+                    } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            final long baseId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                            mSegments.add(new Segment(file, baseId, (int) file.length()));
+                        } catch (final NumberFormatException e) {
+                            HLog.w(LOGTAG, "Ignoring unexpected file in the event log " + name);
+                        }
+                    }
+                }
+            }
+            Collections.sort(mSegments, new Comparator<Segment>() {
+                @Override
+                public int compare(Segment lhs, Segment rhs) {
+                    return lhs.baseId < rhs.baseId ? -1 : (lhs.baseId == rhs.baseId ? 0 : 1);
+                }
+            });
+
+            mNextId = lastConsumed + 1;
+            mReadId = -1;
+            mReadOffset = 0;
+            mCount = 0;
+            mAutomaticCount = 0;
+            for (int i = 0; i < mSegments.size(); i++) {
+                recover(mSegments.get(i), lastConsumed);
+            }
+            if (mReadId == -1) {
+                // Everything has been consumed, only the last segment will be kept
+                mReadId = mNextId;
+                mReadOffset = mSegments.isEmpty() ? 0 : mSegments.get(mSegments.size() - 1).writePosition;
+            }
+            deleteConsumedSegments();
+            mOpened = true;
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not open the Hevo event log.", e);
+            mSegments.clear();
+            mCursor = null;
+        }
+        return mOpened;
+    }
+
+    // Walks every record in the segment, stopping at the first record that is
+    // incomplete or fails its checksum, and counts the records not yet consumed.
+    private void recover(Segment segment, long lastConsumed) throws IOException {
+        final MappedByteBuffer buffer = segment.buffer();
+        int position = 0;
+        long id = segment.baseId;
+        while (segment.capacity - position >= RECORD_HEADER_SIZE) {
+            final int length = buffer.getInt(position);
+            if (length <= 0 || length > segment.capacity - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            final int crc = buffer.getInt(position + 4);
+            final long createdAt = buffer.getLong(position + 8);
+            final byte flags = buffer.get(position + 16);
+            final byte[] payload = readPayload(buffer, position + RECORD_HEADER_SIZE, length);
+            if (crc != checksum(createdAt, flags, payload, length)) {
+                HLog.w(LOGTAG, "Dropping damaged record " + id + " and everything after it in " + segment.file.getName());
+                break;
+            }
+
+            if (id > lastConsumed) {
+                if (mReadId == -1) {
+                    mReadId = id;
+                    mReadOffset = position;
+                }
+                mCount++;
+                if ((flags & FLAG_AUTOMATIC) != 0) {
+                    mAutomaticCount++;
+                }
+            }
+            position += RECORD_HEADER_SIZE + length;
+            id++;
+        }
+
+        segment.writePosition = position;
+        segment.recordCount = (int) (id - segment.baseId);
+        mNextId = Math.max(mNextId, id);
+    }
+
+    private void consume(Reader reader, int consumed) {
+        if (consumed == 0) {
+            return;
+        }
+        final Segment current = reader.segment();
+        mReadId = reader.id + 1;
+        mCount -= consumed;
+        mAutomaticCount -= reader.automaticSeen;
+        deleteConsumedSegments();
+        // The reader's offset is relative to its own segment, which may just have been deleted
+        mReadOffset = !mSegments.isEmpty() && mSegments.get(0) == current ? reader.nextOffset : 0;
+        writeCursor(mReadId - 1);
+    }
+
+    // Deletes segments at the head of the log whose records have all been consumed. The
+    // last segment is kept even when consumed, since it is still being appended to.
+    private void deleteConsumedSegments() {
+        while (mSegments.size() > 1) {
+            final Segment head = mSegments.get(0);
+            if (head.baseId + head.recordCount > mReadId) {
+                break;
+            }
+            head.delete();
+            mSegments.remove(0);
+        }
+        if (!mSegments.isEmpty() && mReadId < mSegments.get(0).baseId) {
+            // Records lost to damage leave gaps between segments
+            mReadId = mSegments.get(0).baseId;
+            mReadOffset = 0;
+        }
+    }
+
+    // Oldest records are evicted first. Unlike the SQLite store we can't prefer automatic
+    // events, since the log can only be consumed from its head.
+    private void enforceQueueBounds() {
+        int excess = mCount - mConfig.getMaximumQueueSize();
+        if (mSegments.size() > 1) {
+            long bytes = 0;
+            for (final Segment segment : mSegments) {
+                bytes += segment.capacity;
+            }
+            if (bytes > mConfig.getMaximumDatabaseSize()) {
+                // Drop the rest of the oldest segment so its file can be deleted
+                final Segment head = mSegments.get(0);
+                excess = Math.max(excess, (int) (head.baseId + head.recordCount - mReadId));
+            }
+        }
+        if (excess <= 0) {
+            return;
+        }
+
+        try {
+            final Reader reader = new Reader();
+            int consumed = 0;
+            while (consumed < excess && reader.next()) {
+                consumed++;
+            }
+            consume(reader, consumed);
+            HLog.w(LOGTAG, "Hevo event log is over its configured bounds, evicted " + consumed + " of the oldest events");
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not evict records from the event log.", e);
+        }
+    }
+
+    private void appendRecord(byte[] payload, long createdAt, byte flags) throws IOException {
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        if (segment == null || segment.capacity - segment.writePosition < recordSize) {
+            segment = createSegment(mNextId, Math.max(SEGMENT_SIZE, recordSize));
+        }
+
+        final MappedByteBuffer buffer = segment.buffer();
+        final int position = segment.writePosition;
+
+        buffer.position(position + 4);
+        buffer.putInt(checksum(createdAt, flags, payload, payload.length));
+        buffer.putLong(createdAt);
+        buffer.put(flags);
+        buffer.put(payload);
+        // Mark the end of the log before publishing the record, then publish it by writing its length.
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(position + recordSize, 0);
+        }
+        buffer.putInt(position, payload.length);
+
+        segment.writePosition += recordSize;
+        segment.recordCount++;
+        mNextId++;
+        mCount++;
+        if ((flags & FLAG_AUTOMATIC) != 0) {
+            mAutomaticCount++;
+        }
+    }
+
+    private Segment createSegment(long baseId, int capacity) throws IOException {
+        final File file = new File(mDirectory, segmentName(baseId));
+        final Segment segment = new Segment(file, baseId, capacity);
+        segment.buffer();
+        mSegments.add(segment);
+        return segment;
+    }
+
+    private void writeCursor(long consumedId) {
+        if (mCursor != null) {
+            mCursor.putLong(8, consumedId ^ CURSOR_MAGIC);
+            mCursor.putLong(0, consumedId);
+        }
+    }
+
+    private int checksum(long createdAt, byte flags, byte[] payload, int length) {
+        mCrc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mCrc.update((int) (createdAt >>> shift) & 0xff);
+        }
+        mCrc.update(flags);
+        mCrc.update(payload, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    // Returns a scratch array holding the payload. Only valid until the next call.
+    private byte[] readPayload(MappedByteBuffer buffer, int position, int length) {
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        buffer.position(position);
+        buffer.get(mScratch, 0, length);
+        return mScratch;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String segmentName(long baseId) {
+        final String id = Long.toString(baseId);
+        final StringBuilder name = new StringBuilder(20 + SEGMENT_SUFFIX.length());
+        for (int i = id.length(); i < 20; i++) {
+            name.append('0');
+        }
+        return name.append(id).append(SEGMENT_SUFFIX).toString();
+    }
+
+    /**
+     * Iterates over unconsumed records from the head of the log.
+     */
+    private class Reader {
+        Reader() {
+            mSegmentIndex = 0;
+            nextId = mReadId;
+            nextOffset = mReadOffset;
+            id = mReadId - 1;
+        }
+
+        long peekId() {
+            return nextId;
+        }
+
+        Segment segment() {
+            return mSegmentIndex < mSegments.size() ? mSegments.get(mSegmentIndex) : null;
+        }
+
+        boolean next() throws IOException {
+            while (mSegmentIndex < mSegments.size()) {
+                final Segment segment = mSegments.get(mSegmentIndex);
+                if (nextId < segment.baseId) {
+                    nextId = segment.baseId;
+                    nextOffset = 0;
+                }
+                if (nextOffset < segment.writePosition) {
+                    final MappedByteBuffer buffer = segment.buffer();
+                    mPrevOffset = nextOffset;
+                    mPrevAutomatic = automaticSeen;
+                    mLength = buffer.getInt(nextOffset);
+                    createdAt = buffer.getLong(nextOffset + 8);
+                    mFlags = buffer.get(nextOffset + 16);
+                    mBuffer = buffer;
+                    mPayloadOffset = nextOffset + RECORD_HEADER_SIZE;
+
+                    id = nextId;
+                    nextId++;
+                    nextOffset += RECORD_HEADER_SIZE + mLength;
+                    if (isAutomatic()) {
+                        automaticSeen++;
+                    }
+                    return true;
+                }
+                if (mSegmentIndex == mSegments.size() - 1) {
+                    // Stay on the last segment so its offset remains valid
+                    break;
+                }
+                mSegmentIndex++;
+                nextOffset = 0;
+            }
+            return false;
+        }
+
+        // Steps back over the record most recently returned by next()
+        void unread() {
+            nextId = id;
+            id = id - 1;
+            nextOffset = mPrevOffset;
+            automaticSeen = mPrevAutomatic;
+        }
+
+        boolean isAutomatic() {
+            return (mFlags & FLAG_AUTOMATIC) != 0;
+        }
+
+        String payload() {
+            return new String(readPayload(mBuffer, mPayloadOffset, mLength), 0, mLength, UTF_8);
+        }
+
+        byte[] payloadBytes() {
+            return Arrays.copyOf(readPayload(mBuffer, mPayloadOffset, mLength), mLength);
+        }
+
+        long id;
+        long nextId;
+        int nextOffset;
+        long createdAt;
+        int automaticSeen;
+
+        private int mSegmentIndex;
+        private int mPrevOffset;
+        private int mPrevAutomatic;
+        private int mLength;
+        private byte mFlags;
+        private int mPayloadOffset;
+        private MappedByteBuffer mBuffer;
+    }
+
+    private static class Segment {
+        Segment(File file, long baseId, int capacity) {
+            this.file = file;
+            this.baseId = baseId;
+            this.capacity = capacity;
+        }
+
+        MappedByteBuffer buffer() throws IOException {
+            if (mBuffer == null) {
+                mBuffer = map(file, capacity);
+            }
+            return mBuffer;
+        }
+
+        void delete() {
+            // The mapping itself is released when the buffer is collected
+            mBuffer = null;
+            file.delete();
+        }
+
+        final File file;
+        final long baseId;
+        final int capacity;
+        int writePosition;
+        int recordCount;
+
+        private MappedByteBuffer mBuffer;
+    }
+
+    private final File mDirectory;
+    private final HevoConfig mConfig;
+    private final List<Segment> mSegments;
+    private final CRC32 mCrc;
+    private byte[] mScratch;
+    private MappedByteBuffer mCursor;
+    private boolean mOpened;
+
+    private long mNextId; // id of the next record appended
+    private long mReadId; // id of the first record not yet consumed
+    private int mReadOffset; // offset of that record in the first segment
+    private int mCount;
+    private int mAutomaticCount;
+}
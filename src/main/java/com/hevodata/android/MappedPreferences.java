@@ -0,0 +1,644 @@
+package com.hevodata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.hevodata.android.util.HLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * SharedPreferences kept in a memory-mapped, append-only log, used in place of the XML
+ * files when the com.hevodata.android.MappedPreferences option is set.
+ *
+ * <p>Every commit or apply appends a single record holding just the keys it changed, framed
+ * with its length and a CRC32 like the records of {@link MappedEventStore}, so a write costs
+ * as much as the change rather than the whole file, and a torn write is dropped when the
+ * file is reopened. Once the file is full it is rewritten with only the current values,
+ * growing it if they take up more than half of it.
+ *
+ * <p>Writes land in the page cache as soon as they are made, so they survive the process
+ * being killed. apply() never waits on the disk, unlike the XML files where pending writes
+ * can hold up Activity.onPause; commit() also flushes the file to the disk.
+ *
+ * <p>The first time a file is opened, the values in the XML SharedPreferences of the same
+ * name are copied into it. The XML file itself is left alone until the option is turned off
+ * again, when {@link #restoreXml(Context, String)} copies the values back into it.
+ *
+ * <p>Thread-safe.
+ */
+class MappedPreferences implements SharedPreferences {
+    private static final String LOGTAG = "HevoAPI.MappedPrefs";
+    private static final Map<String, MappedPreferences> sInstances = new HashMap<>();
+
+    private static final String DIRECTORY_NAME = "com.hevodata.android.prefs";
+    private static final String FILE_SUFFIX = ".kv";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+
+    // magic (int), then records of length (int), crc (int), payload
+    private static final int FILE_MAGIC = 0x48564b56;
+    private static final int FILE_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+    // Each payload is a sequence of operations, each starting with one of these
+    private static final byte OP_CLEAR = 0;
+    private static final byte OP_REMOVE = 1;
+    private static final byte OP_STRING = 2;
+    private static final byte OP_INT = 3;
+    private static final byte OP_LONG = 4;
+    private static final byte OP_FLOAT = 5;
+    private static final byte OP_BOOLEAN = 6;
+    private static final byte OP_STRING_SET = 7;
+
+    MappedPreferences(Context context, String name) {
+        mContext = context;
+        mName = name;
+        mFile = new File(new File(context.getFilesDir(), DIRECTORY_NAME), name + FILE_SUFFIX);
+        mValues = new HashMap<>();
+        mListeners = new WeakHashMap<>();
+        mCrc = new CRC32();
+        mOpened = false;
+    }
+
+    public static MappedPreferences getInstance(Context context, String name) {
+        synchronized (sInstances) {
+            final Context appContext = context.getApplicationContext();
+            MappedPreferences ret = sInstances.get(name);
+            if (null == ret) {
+                ret = new MappedPreferences(appContext, name);
+                sInstances.put(name, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * If there is a file of this name, copies its values back into the XML SharedPreferences of
+     * the same name, replacing theirs, and deletes it. Called before the XML file is used, so that
+     * turning the option off doesn't bring back the values the XML file had when it was migrated,
+     * such as an older distinct id or opt out state.
+     */
+    static void restoreXml(Context context, String name) {
+        synchronized (sInstances) {
+            final MappedPreferences mapped = new MappedPreferences(context, name);
+            if (!mapped.mFile.exists()) {
+                return;
+            }
+            final SharedPreferences.Editor editor = context.getSharedPreferences(name, Context.MODE_PRIVATE).edit().clear();
+            for (final Map.Entry<String, ?> entry : mapped.getAll().entrySet()) {
+                final Object value = entry.getValue();
+                if (value instanceof String) {
+                    editor.putString(entry.getKey(), (String) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(entry.getKey(), (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(entry.getKey(), (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(entry.getKey(), (Float) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(entry.getKey(), (Boolean) value);
+                } else if (value instanceof Set && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    @SuppressWarnings("unchecked")
+                    final Set<String> set = (Set<String>) value;
+                    editor.putStringSet(entry.getKey(), set);
+                }
+            }
+            if (!editor.commit()) {
+                HLog.e(LOGTAG, "Could not restore preferences " + name + " from " + mapped.mFile + ", keeping it");
+                return;
+            }
+            sInstances.remove(name);
+            if (!mapped.mFile.delete()) {
+                HLog.w(LOGTAG, "Could not delete " + mapped.mFile);
+            }
+            HLog.v(LOGTAG, "Restored preferences " + name + " from " + mapped.mFile);
+        }
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        open();
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        open();
+        final String ret = (String) mValues.get(key);
+        return null == ret ? defValue : ret;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+        open();
+        final Set<String> ret = (Set<String>) mValues.get(key);
+        return null == ret ? defValues : new HashSet<>(ret);
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        open();
+        final Integer ret = (Integer) mValues.get(key);
+        return null == ret ? defValue : ret;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        open();
+        final Long ret = (Long) mValues.get(key);
+        return null == ret ? defValue : ret;
+    }
+
+    @Override
+    public synchronized float getFloat(String key, float defValue) {
+        open();
+        final Float ret = (Float) mValues.get(key);
+        return null == ret ? defValue : ret;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        open();
+        final Boolean ret = (Boolean) mValues.get(key);
+        return null == ret ? defValue : ret;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        open();
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new MappedEditor();
+    }
+
+    @Override
+    public synchronized void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.put(listener, this);
+    }
+
+    @Override
+    public synchronized void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private class MappedEditor implements Editor {
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, null == values ? null : new HashSet<>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        // As with the XML files, putting null removes the key
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        private synchronized Editor put(String key, Object value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        private boolean write(boolean sync) {
+            final boolean clear;
+            final Map<String, Object> changes;
+            synchronized (this) {
+                clear = mClear;
+                changes = new LinkedHashMap<>(mChanges);
+                mClear = false;
+                mChanges.clear();
+            }
+            return MappedPreferences.this.write(clear, changes, sync);
+        }
+
+        private boolean mClear;
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+    }
+
+    //////////////////////////////////////////////////
+
+    private synchronized boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+        if (!open()) {
+            return false;
+        }
+
+        final List<String> changedKeys = new ArrayList<>();
+        // The previous value of every key changed, or null if it had none, to undo a failed write
+        final Map<String, Object> previous = new HashMap<>();
+        final PayloadWriter payload = new PayloadWriter();
+        try {
+            if (clear) {
+                changedKeys.addAll(mValues.keySet());
+                previous.putAll(mValues);
+                mValues.clear();
+                payload.clear();
+            }
+            for (final Map.Entry<String, Object> change : changes.entrySet()) {
+                final String key = change.getKey();
+                final Object value = change.getValue();
+                final Object old = null == value ? mValues.remove(key) : mValues.put(key, value);
+                if (!previous.containsKey(key)) {
+                    previous.put(key, old);
+                }
+                if (null == value) {
+                    if (null == old && !clear) {
+                        continue;
+                    }
+                    payload.remove(key);
+                } else {
+                    if (value.equals(old)) {
+                        continue;
+                    }
+                    payload.put(key, value);
+                }
+                changedKeys.add(key);
+            }
+
+            if (payload.isEmpty()) {
+                return true;
+            }
+            if (mWritePosition + RECORD_HEADER_SIZE + payload.size() + 4 > mBuffer.capacity()) {
+                // The values already include this change, so the rewrite covers it
+                rewrite();
+            } else {
+                appendRecord(payload.toByteArray());
+            }
+            if (sync) {
+                mBuffer.force();
+            }
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not write Hevo preferences to " + mFile, e);
+            // Readers must not see values that aren't in the file
+            for (final Map.Entry<String, Object> entry : previous.entrySet()) {
+                if (null == entry.getValue()) {
+                    mValues.remove(entry.getKey());
+                } else {
+                    mValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return false;
+        }
+
+        notifyListeners(changedKeys);
+        return true;
+    }
+
+    // Must be called while synchronized
+    private boolean open() {
+        if (mOpened) {
+            return true;
+        }
+
+        try {
+            final File directory = mFile.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory);
+            }
+
+            if (!mFile.exists()) {
+                migrate();
+            } else {
+                mBuffer = map(mFile, 0);
+                if (mBuffer.capacity() < FILE_HEADER_SIZE || mBuffer.getInt(0) != FILE_MAGIC) {
+                    HLog.w(LOGTAG, "Unreadable preferences file " + mFile + ", starting over");
+                    mValues.clear();
+                    rewrite();
+                } else {
+                    replay();
+                }
+            }
+            mOpened = true;
+        } catch (final IOException e) {
+            HLog.e(LOGTAG, "Could not open Hevo preferences " + mFile + ". Values will not be kept.", e);
+        }
+        return mOpened;
+    }
+
+    // Copies the values of the XML SharedPreferences of the same name, the first time this file is opened.
+    private void migrate() throws IOException {
+        final Map<String, ?> legacy = mContext.getSharedPreferences(mName, Context.MODE_PRIVATE).getAll();
+        for (final Map.Entry<String, ?> entry : legacy.entrySet()) {
+            if (null != entry.getValue()) {
+                mValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        rewrite();
+        HLog.v(LOGTAG, "Migrated " + mValues.size() + " preferences from " + mName);
+    }
+
+    private void replay() {
+        mValues.clear();
+        int position = FILE_HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= mBuffer.capacity()) {
+            final int length = mBuffer.getInt(position);
+            if (length <= 0 || length > mBuffer.capacity() - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+
+            final byte[] payload = new byte[length];
+            mBuffer.position(position + RECORD_HEADER_SIZE);
+            mBuffer.get(payload);
+            if (checksum(payload) != mBuffer.getInt(position + 4)) {
+                HLog.w(LOGTAG, "Dropping a torn write at the end of " + mFile);
+                break;
+            }
+            if (!apply(ByteBuffer.wrap(payload))) {
+                HLog.w(LOGTAG, "Dropping an unreadable record at the end of " + mFile);
+                break;
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        mWritePosition = position;
+    }
+
+    // Applies the operations in a payload to mValues, all of them or none.
+    private boolean apply(ByteBuffer payload) {
+        final Map<String, Object> values = new HashMap<>(mValues);
+        try {
+            while (payload.hasRemaining()) {
+                final byte op = payload.get();
+                if (op == OP_CLEAR) {
+                    values.clear();
+                    continue;
+                }
+
+                final String key = readString(payload);
+                switch (op) {
+                    case OP_REMOVE:
+                        values.remove(key);
+                        break;
+                    case OP_STRING:
+                        values.put(key, readString(payload));
+                        break;
+                    case OP_INT:
+                        values.put(key, payload.getInt());
+                        break;
+                    case OP_LONG:
+                        values.put(key, payload.getLong());
+                        break;
+                    case OP_FLOAT:
+                        values.put(key, payload.getFloat());
+                        break;
+                    case OP_BOOLEAN:
+                        values.put(key, payload.get() != 0);
+                        break;
+                    case OP_STRING_SET:
+                        final int count = payload.getInt();
+                        final Set<String> set = new HashSet<>();
+                        for (int i = 0; i < count; i++) {
+                            set.add(readString(payload));
+                        }
+                        values.put(key, set);
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        } catch (final RuntimeException e) {
+            // Buffer underflows, or lengths that don't make sense
+            return false;
+        }
+
+        mValues.clear();
+        mValues.putAll(values);
+        return true;
+    }
+
+    // Replaces the file with one holding only the current values, so that it doesn't grow without end.
+    private void rewrite() throws IOException {
+        final PayloadWriter payload = new PayloadWriter();
+        payload.clear();
+        for (final Map.Entry<String, Object> entry : mValues.entrySet()) {
+            payload.put(entry.getKey(), entry.getValue());
+        }
+        final byte[] bytes = payload.toByteArray();
+
+        int capacity = INITIAL_SIZE;
+        while (capacity < 2 * (FILE_HEADER_SIZE + RECORD_HEADER_SIZE + bytes.length + 4)) {
+            capacity *= 2;
+        }
+
+        final File temp = new File(mFile.getPath() + ".tmp");
+        temp.delete();
+        final MappedByteBuffer buffer = map(temp, capacity);
+        final MappedByteBuffer previousBuffer = mBuffer;
+        final int previousWritePosition = mWritePosition;
+        buffer.putInt(0, FILE_MAGIC);
+        mBuffer = buffer;
+        mWritePosition = FILE_HEADER_SIZE;
+        appendRecord(bytes);
+        buffer.force();
+        if (!temp.renameTo(mFile)) {
+            // Keep appending to the file we still have
+            mBuffer = previousBuffer;
+            mWritePosition = previousWritePosition;
+            temp.delete();
+            throw new IOException("Could not replace " + mFile);
+        }
+    }
+
+    private void appendRecord(byte[] payload) {
+        final int position = mWritePosition;
+        final int recordSize = RECORD_HEADER_SIZE + payload.length;
+        mBuffer.position(position + 4);
+        mBuffer.putInt(checksum(payload));
+        mBuffer.put(payload);
+        // Mark the end of the log before publishing the record, then publish it by writing its length.
+        if (mBuffer.remaining() >= 4) {
+            mBuffer.putInt(position + recordSize, 0);
+        }
+        mBuffer.putInt(position, payload.length);
+        mWritePosition += recordSize;
+    }
+
+    private int checksum(byte[] payload) {
+        mCrc.reset();
+        mCrc.update(payload, 0, payload.length);
+        return (int) mCrc.getValue();
+    }
+
+    // Listeners are called on the main thread, as they are for the XML files
+    private void notifyListeners(final List<String> changedKeys) {
+        if (mListeners.isEmpty() || changedKeys.isEmpty()) {
+            return;
+        }
+        final List<OnSharedPreferenceChangeListener> listeners = new ArrayList<>(mListeners.keySet());
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                for (final String key : changedKeys) {
+                    for (final OnSharedPreferenceChangeListener listener : listeners) {
+                        listener.onSharedPreferenceChanged(MappedPreferences.this, key);
+                    }
+                }
+            }
+        });
+    }
+
+    private static String readString(ByteBuffer payload) {
+        final byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class PayloadWriter {
+        PayloadWriter() {
+            mBytes = new ByteArrayOutputStream();
+            mOut = new DataOutputStream(mBytes);
+        }
+
+        void clear() throws IOException {
+            mOut.writeByte(OP_CLEAR);
+        }
+
+        void remove(String key) throws IOException {
+            mOut.writeByte(OP_REMOVE);
+            writeString(key);
+        }
+
+        @SuppressWarnings("unchecked")
+        void put(String key, Object value) throws IOException {
+            if (value instanceof String) {
+                mOut.writeByte(OP_STRING);
+                writeString(key);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                mOut.writeByte(OP_INT);
+                writeString(key);
+                mOut.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                mOut.writeByte(OP_LONG);
+                writeString(key);
+                mOut.writeLong((Long) value);
+            } else if (value instanceof Float) {
+                mOut.writeByte(OP_FLOAT);
+                writeString(key);
+                mOut.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                mOut.writeByte(OP_BOOLEAN);
+                writeString(key);
+                mOut.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Set) {
+                final Set<String> set = (Set<String>) value;
+                mOut.writeByte(OP_STRING_SET);
+                writeString(key);
+                mOut.writeInt(set.size());
+                for (final String s : set) {
+                    writeString(s);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported preference type " + value.getClass());
+            }
+        }
+
+        boolean isEmpty() {
+            return mOut.size() == 0;
+        }
+
+        int size() {
+            return mOut.size();
+        }
+
+        byte[] toByteArray() {
+            return mBytes.toByteArray();
+        }
+
+        private void writeString(String s) throws IOException {
+            final byte[] bytes = s.getBytes(UTF_8);
+            mOut.writeInt(bytes.length);
+            mOut.write(bytes);
+        }
+
+        private final ByteArrayOutputStream mBytes;
+        private final DataOutputStream mOut;
+    }
+
+    private final Context mContext;
+    private final String mName;
+    private final File mFile;
+    private final Map<String, Object> mValues;
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners;
+    private final CRC32 mCrc;
+    private MappedByteBuffer mBuffer;
+    private int mWritePosition;
+    private boolean mOpened;
+}
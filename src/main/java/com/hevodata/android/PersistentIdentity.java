@@ -72,7 +72,7 @@ class PersistentIdentity {
         mTimeEventsPreferences = timeEventsPreferences;
         mHevoPreferences = hevoPreferences;
         mSuperPropertiesCache = null;
-        mReferrerPropertiesCache = null;
+        mReferrerProperties = null;
         mIdentitiesLoaded = false;
         mReferrerChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
             @Override
@@ -129,13 +129,23 @@ class PersistentIdentity {
     }
 
     public Map<String, String> getReferrerProperties() {
+        return getReferrer().getProperties();
+    }
+
+    // Called for every tracked event. The referrer hardly ever changes, so unless it just did
+    // this returns the same instance without taking the lock.
+    public ReferrerProperties getReferrer() {
+        final ReferrerProperties cached = mReferrerProperties;
+        if (null != cached && !sReferrerPrefsDirty) {
+            return cached;
+        }
         synchronized (sReferrerPrefsLock) {
-            if (sReferrerPrefsDirty || null == mReferrerPropertiesCache) {
+            if (sReferrerPrefsDirty || null == mReferrerProperties) {
                 readReferrerProperties();
                 sReferrerPrefsDirty = false;
             }
+            return mReferrerProperties;
         }
-        return mReferrerPropertiesCache;
     }
 
     public void clearReferrerProperties() {
@@ -153,11 +163,17 @@ class PersistentIdentity {
         }
     }
 
-    public synchronized String getEventsDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+    // Called for every tracked event, so once the identities are loaded this doesn't take the lock
+    public String getEventsDistinctId() {
+        if (mIdentitiesLoaded) {
+            return mEventsDistinctId;
+        }
+        synchronized (this) {
+            if (! mIdentitiesLoaded) {
+                readIdentities();
+            }
+            return mEventsDistinctId;
         }
-        return mEventsDistinctId;
     }
 
     public synchronized void setEventsDistinctId(String eventsDistinctId) {
@@ -488,12 +504,18 @@ class PersistentIdentity {
         writeOptOutFlag();
     }
 
-    public synchronized boolean getOptOutTracking() {
-        if (mIsUserOptOut == null) {
-            readOptOutFlag();
+    // Called several times for every tracked event, so once the flag is read this doesn't take the lock
+    public boolean getOptOutTracking() {
+        final Boolean isUserOptOut = mIsUserOptOut;
+        if (isUserOptOut != null) {
+            return isUserOptOut;
+        }
+        synchronized (this) {
+            if (mIsUserOptOut == null) {
+                readOptOutFlag();
+            }
+            return mIsUserOptOut != null && mIsUserOptOut;
         }
-
-        return mIsUserOptOut;
     }
 
     //////////////////////////////////////////////////
@@ -529,7 +551,7 @@ class PersistentIdentity {
 
     // All access should be synchronized on this
     private void readReferrerProperties() {
-        mReferrerPropertiesCache = new HashMap<String, String>();
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
 
         try {
             final SharedPreferences referrerPrefs = mLoadReferrerPreferences.get();
@@ -540,12 +562,14 @@ class PersistentIdentity {
             for (final Map.Entry<String, ?> entry : prefsMap.entrySet()) {
                 final String prefsName = entry.getKey();
                 final Object prefsVal = entry.getValue();
-                mReferrerPropertiesCache.put(prefsName, prefsVal.toString());
+                referrerProperties.put(prefsName, prefsVal.toString());
             }
         } catch (final ExecutionException e) {
             HLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e.getCause());
         } catch (final InterruptedException e) {
             HLog.e(LOGTAG, "Cannot load referrer properties from shared preferences.", e);
+        } finally {
+            mReferrerProperties = new ReferrerProperties(referrerProperties);
         }
     }
 
@@ -586,7 +610,7 @@ class PersistentIdentity {
             return;
         }
 
-        mEventsDistinctId = prefs.getString("events_distinct_id", null);
+        final String storedDistinctId = prefs.getString("events_distinct_id", null);
         mPeopleDistinctId = prefs.getString("people_distinct_id", null);
         mWaitingPeopleRecords = null;
 
@@ -599,9 +623,12 @@ class PersistentIdentity {
             }
         }
 
-        if (mEventsDistinctId == null) {
+        // Assigned once, since readers that don't take the lock may be looking
+        if (storedDistinctId == null) {
             mEventsDistinctId = UUID.randomUUID().toString();
             writeIdentities();
+        } else {
+            mEventsDistinctId = storedDistinctId;
         }
 
         mIdentitiesLoaded = true;
@@ -667,16 +694,18 @@ class PersistentIdentity {
     private final Future<SharedPreferences> mHevoPreferences;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
     private JSONObject mSuperPropertiesCache;
-    private Map<String, String> mReferrerPropertiesCache;
-    private boolean mIdentitiesLoaded;
-    private String mEventsDistinctId;
+    private volatile ReferrerProperties mReferrerProperties;
+    // Written while synchronized, but read without the lock, see getEventsDistinctId and getOptOutTracking.
+    // mEventsDistinctId is always written before mIdentitiesLoaded, so that the id is published by it.
+    private volatile boolean mIdentitiesLoaded;
+    private volatile String mEventsDistinctId;
     private String mPeopleDistinctId;
     private JSONArray mWaitingPeopleRecords;
-    private Boolean mIsUserOptOut;
+    private volatile Boolean mIsUserOptOut;
     private static Integer sPreviousVersionCode;
     private static Boolean sIsFirstAppLaunch;
 
-    private static boolean sReferrerPrefsDirty = true;
+    private static volatile boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
     private static final String DELIMITER = ",";
     private static final String LOGTAG = "HevoAPI.PIdentity";
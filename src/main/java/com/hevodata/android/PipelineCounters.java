@@ -0,0 +1,38 @@
+package com.hevodata.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters behind {@link PipelineStats}. Written from the thread calling track and from
+ * the Hevo worker thread, read from any thread, without taking any locks. The histograms are
+ * only written by the worker, which also logs them when asked to dump its histograms.
+ */
+class PipelineCounters {
+
+    public PipelineStats snapshot() {
+        return new PipelineStats(
+                eventsEnqueued.get(),
+                eventsStored.get(),
+                eventsDropped.get(),
+                eventsSent.get(),
+                queueDepth.get(),
+                bytesSent.get(),
+                retries.get(),
+                failedFlushes.get(),
+                insertLatency.snapshot(),
+                batchSize.snapshot(),
+                uploadLatency.snapshot());
+    }
+
+    final AtomicLong eventsEnqueued = new AtomicLong();
+    final AtomicLong eventsStored = new AtomicLong();
+    final AtomicLong eventsDropped = new AtomicLong();
+    final AtomicLong eventsSent = new AtomicLong();
+    final AtomicLong queueDepth = new AtomicLong();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong failedFlushes = new AtomicLong();
+    final Histogram insertLatency = new Histogram("Insert duration", "us");
+    final Histogram batchSize = new Histogram("Batch size", "events");
+    final Histogram uploadLatency = new Histogram("HTTP round trip", "us");
+}
@@ -0,0 +1,210 @@
+package com.hevodata.android;
+
+/**
+ * A point in time snapshot of how events are moving through the library, from the
+ * calls to {@link HevoAPI#track(String, org.json.JSONObject)} to the Hevo servers.
+ *
+ * <p>Counters start at zero when the process starts. Use {@link HevoAPI#getPipelineStats()}
+ * to get a snapshot, for example to report the health of the library from your own app.
+ */
+public final class PipelineStats {
+
+    /**
+     * Summary of a set of recorded values, such as latencies or batch sizes.
+     */
+    public static final class Distribution {
+        Distribution(long count, long total, long max, long p50, long p90, long p99) {
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+            mP50 = p50;
+            mP90 = p90;
+            mP99 = p99;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the sum of the recorded values
+         */
+        public long getTotal() {
+            return mTotal;
+        }
+
+        /**
+         * @return the largest recorded value, or 0 if nothing was recorded
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return the median of the recorded values, to within 12.5%, or 0 if nothing was recorded
+         */
+        public long getP50() {
+            return mP50;
+        }
+
+        /**
+         * @return the 90th percentile of the recorded values, to within 12.5%, or 0 if nothing was recorded
+         */
+        public long getP90() {
+            return mP90;
+        }
+
+        /**
+         * @return the 99th percentile of the recorded values, to within 12.5%, or 0 if nothing was recorded
+         */
+        public long getP99() {
+            return mP99;
+        }
+
+        /**
+         * @return the average of the recorded values, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mTotal / mCount;
+        }
+
+        @Override
+        public String toString() {
+            return "count " + mCount + ", mean " + getMean() + ", p50 " + mP50 + ", p90 " + mP90 +
+                    ", p99 " + mP99 + ", max " + mMax;
+        }
+
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+        private final long mP50;
+        private final long mP90;
+        private final long mP99;
+    }
+
+    PipelineStats(long eventsEnqueued, long eventsStored, long eventsDropped, long eventsSent,
+                  long queueDepth, long bytesSent, long retries, long failedFlushes,
+                  Distribution insertLatency, Distribution batchSize, Distribution uploadLatency) {
+        mEventsEnqueued = eventsEnqueued;
+        mEventsStored = eventsStored;
+        mEventsDropped = eventsDropped;
+        mEventsSent = eventsSent;
+        mQueueDepth = queueDepth;
+        mBytesSent = bytesSent;
+        mRetries = retries;
+        mFailedFlushes = failedFlushes;
+        mInsertLatency = insertLatency;
+        mBatchSize = batchSize;
+        mUploadLatency = uploadLatency;
+    }
+
+    /**
+     * @return the number of events handed to the background worker
+     */
+    public long getEventsEnqueued() {
+        return mEventsEnqueued;
+    }
+
+    /**
+     * @return the number of events written to the local queue
+     */
+    public long getEventsStored() {
+        return mEventsStored;
+    }
+
+    /**
+     * @return the number of events lost before being sent, because they could not be
+     * stored or because their batch could not be posted at all
+     */
+    public long getEventsDropped() {
+        return mEventsDropped;
+    }
+
+    /**
+     * @return the number of events accepted by the Hevo servers
+     */
+    public long getEventsSent() {
+        return mEventsSent;
+    }
+
+    /**
+     * @return the number of events waiting in the local queue, as last seen by the worker
+     */
+    public long getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return the number of bytes of event data in the posts that succeeded
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return the number of times a failed batch was scheduled to be sent again
+     */
+    public long getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * @return the number of posts to the Hevo servers that failed
+     */
+    public long getFailedFlushes() {
+        return mFailedFlushes;
+    }
+
+    /**
+     * @return time in microseconds taken to write an event to the local queue
+     */
+    public Distribution getInsertLatency() {
+        return mInsertLatency;
+    }
+
+    /**
+     * @return number of events per batch posted
+     */
+    public Distribution getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * @return time in microseconds taken by each post to the Hevo servers
+     */
+    public Distribution getUploadLatency() {
+        return mUploadLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineStats {\n" +
+                "    EventsEnqueued " + mEventsEnqueued + "\n" +
+                "    EventsStored " + mEventsStored + "\n" +
+                "    EventsDropped " + mEventsDropped + "\n" +
+                "    EventsSent " + mEventsSent + "\n" +
+                "    QueueDepth " + mQueueDepth + "\n" +
+                "    BytesSent " + mBytesSent + "\n" +
+                "    Retries " + mRetries + "\n" +
+                "    FailedFlushes " + mFailedFlushes + "\n" +
+                "    InsertLatency " + mInsertLatency + "\n" +
+                "    BatchSize " + mBatchSize + "\n" +
+                "    UploadLatency " + mUploadLatency + "\n" +
+                "}";
+    }
+
+    private final long mEventsEnqueued;
+    private final long mEventsStored;
+    private final long mEventsDropped;
+    private final long mEventsSent;
+    private final long mQueueDepth;
+    private final long mBytesSent;
+    private final long mRetries;
+    private final long mFailedFlushes;
+    private final Distribution mInsertLatency;
+    private final Distribution mBatchSize;
+    private final Distribution mUploadLatency;
+}
@@ -0,0 +1,53 @@
+package com.hevodata.android;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The install referrer properties added to every event, along with each one already
+ * serialized as a "key":"value" JSON member, so that the worker can copy them into
+ * events as they are.
+ *
+ * <p>They only change when the referrer is received, normally once per install, so a
+ * new instance is made then and shared by every event after. Immutable.
+ */
+class ReferrerProperties {
+    ReferrerProperties(Map<String, String> properties) {
+        final Map<String, String> copy = new LinkedHashMap<String, String>(properties);
+        mProperties = Collections.unmodifiableMap(copy);
+        mKeys = new String[copy.size()];
+        mMembers = new String[copy.size()];
+        int i = 0;
+        for (final Map.Entry<String, String> entry : copy.entrySet()) {
+            mKeys[i] = entry.getKey();
+            mMembers[i] = JSONObject.quote(entry.getKey()) + ':' + JSONObject.quote(entry.getValue());
+            i++;
+        }
+    }
+
+    public Map<String, String> getProperties() {
+        return mProperties;
+    }
+
+    public int size() {
+        return mKeys.length;
+    }
+
+    public String keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * @return the property at index as a JSON object member, "key":"value"
+     */
+    public String memberAt(int index) {
+        return mMembers[index];
+    }
+
+    private final Map<String, String> mProperties;
+    private final String[] mKeys;
+    private final String[] mMembers;
+}
@@ -4,4 +4,5 @@ public class ReservedEvents {
     public static final String INSTALLATION = "$hre_installation";
     public static final String IDENTITY_CHANGE = "$hre_identity_change";
     public static final String ALIAS = "$hre_alias";
+    public static final String THROTTLE_SUMMARY = "$hre_throttle_summary";
 }
@@ -6,37 +6,128 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.hevodata.android.ConfigurationChecker.LOGTAG;
 
+/**
+ * Numbers the events of the current session, for the $h_metadata of each event.
+ *
+ * <p>Events are tracked from any thread while sessions are restarted from the main thread,
+ * so a session is immutable apart from its atomic event counter and is replaced as a whole.
+ * Event ids are the session's random prefix followed by the event's sequence number, which
+ * keeps them as unique as session ids without drawing on a shared Random for every event.
+ */
 class SessionMetadata {
-    private long mEventsCounter, mSessionStartEpoch;
-    private String mSessionID;
-    private Random mRandom;
+
+    /**
+     * The metadata of a single event.
+     */
+    static class EventMetadata {
+        EventMetadata(String eventId, String sessionId, long sequence, long sessionStartEpoch) {
+            mEventId = eventId;
+            mSessionId = sessionId;
+            mSequence = sequence;
+            mSessionStartEpoch = sessionStartEpoch;
+        }
+
+        public String getEventId() {
+            return mEventId;
+        }
+
+        public String getSessionId() {
+            return mSessionId;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getSessionStartEpoch() {
+            return mSessionStartEpoch;
+        }
+
+        public JSONObject toJSONObject() {
+            final JSONObject metadataJson = new JSONObject();
+            try {
+                metadataJson.put("h_event_id", mEventId);
+                metadataJson.put("h_session_id", mSessionId);
+                metadataJson.put("h_session_seq_id", mSequence);
+                metadataJson.put("h_session_start_sec", mSessionStartEpoch);
+            } catch (JSONException e) {
+                HLog.e(LOGTAG, "Cannot create session metadata JSON object", e);
+            }
+            return metadataJson;
+        }
+
+        private final String mEventId;
+        private final String mSessionId;
+        private final long mSequence;
+        private final long mSessionStartEpoch;
+    }
 
     SessionMetadata() {
         initSession();
-        mRandom = new Random();
     }
 
     protected void initSession() {
-        mEventsCounter = 0L;
-        mSessionID = Long.toHexString(new Random().nextLong());
-        mSessionStartEpoch = System.currentTimeMillis() / 1000;
+        mSession = new Session(sRandom.nextLong(), System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Safe to call from any thread.
+     */
+    public EventMetadata nextEvent() {
+        final Session session = mSession;
+        final long sequence = session.counter.getAndIncrement();
+        return new EventMetadata(session.eventId(sequence), session.id, sequence, session.startEpoch);
     }
 
     public JSONObject getMetadataForEvent() {
-        JSONObject metadataJson = new JSONObject();
-        try {
-            metadataJson.put("h_event_id", Long.toHexString(mRandom.nextLong()));
-            metadataJson.put("h_session_id", mSessionID);
-            metadataJson.put("h_session_seq_id", mEventsCounter);
-            metadataJson.put("h_session_start_sec", mSessionStartEpoch);
-            mEventsCounter++;
-        } catch (JSONException e) {
-            HLog.e(LOGTAG, "Cannot create session metadata JSON object", e);
-        }
-
-        return metadataJson;
+        return nextEvent().toJSONObject();
+    }
+
+    private static class Session {
+        Session(long random, long startEpoch) {
+            this.id = Long.toHexString(random);
+            this.startEpoch = startEpoch;
+            this.counter = new AtomicLong();
+            mPrefix = new char[PREFIX_LENGTH];
+            writeHex(random, mPrefix, 0, PREFIX_LENGTH);
+        }
+
+        // 16 hex digits of session prefix, then the low 32 bits of the sequence number in 8 hex digits
+        String eventId(long sequence) {
+            final char[] buffer = sEventIdBuffer.get();
+            System.arraycopy(mPrefix, 0, buffer, 0, PREFIX_LENGTH);
+            writeHex(sequence, buffer, PREFIX_LENGTH, EVENT_ID_LENGTH - PREFIX_LENGTH);
+            return new String(buffer, 0, EVENT_ID_LENGTH);
+        }
+
+        final String id;
+        final long startEpoch;
+        final AtomicLong counter;
+        private final char[] mPrefix;
+    }
+
+    private static void writeHex(long value, char[] buffer, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
     }
+
+    private volatile Session mSession;
+
+    private static final int PREFIX_LENGTH = 16;
+    private static final int EVENT_ID_LENGTH = 24;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Only used when a session starts. java.util.Random is thread-safe.
+    private static final Random sRandom = new Random();
+    private static final ThreadLocal<char[]> sEventIdBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[EVENT_ID_LENGTH];
+        }
+    };
 }
@@ -2,13 +2,25 @@ package com.hevodata.android;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Pair;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Loads SharedPreferences files in the background, several at a time, since each one is read
+ * and parsed from disk on first use.
+ *
+ * <p>Each file is only loaded once per context, so that files loaded ahead of time, see
+ * HevoAPI.preloadPreferences, are shared with later callers.
+ */
 class SharedPreferencesLoader {
 
     interface OnPrefsLoadedListener {
@@ -16,36 +28,88 @@ class SharedPreferencesLoader {
     }
 
     public SharedPreferencesLoader() {
-        mExecutor = Executors.newSingleThreadExecutor();
+        // The threads only live while there are files to load
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS,
+                LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+        mLoaded = new HashMap<Pair<Context, String>, Future<SharedPreferences>>();
     }
 
     public Future<SharedPreferences> loadPreferences(Context context, String name, OnPrefsLoadedListener listener) {
-        final LoadSharedPreferences loadSharedPrefs = new LoadSharedPreferences(context, name, listener);
-        final FutureTask<SharedPreferences> task = new FutureTask<SharedPreferences>(loadSharedPrefs);
-        mExecutor.execute(task);
-        return task;
+        return loadPreferences(context, name, listener, false);
+    }
+
+    /**
+     * @param mapped whether to load the {@link MappedPreferences} of this name rather than the XML file
+     */
+    public Future<SharedPreferences> loadPreferences(Context context, String name, OnPrefsLoadedListener listener, boolean mapped) {
+        final Pair<Context, String> key = new Pair<Context, String>(context, mapped ? name + MAPPED_KEY_SUFFIX : name);
+        Future<SharedPreferences> loaded;
+        synchronized (mLoaded) {
+            loaded = mLoaded.get(key);
+            if (null == loaded) {
+                final FutureTask<SharedPreferences> task = new FutureTask<SharedPreferences>(new LoadSharedPreferences(context, name, mapped));
+                mExecutor.execute(task);
+                mLoaded.put(key, task);
+                loaded = task;
+            }
+        }
+
+        if (null == listener) {
+            return loaded;
+        }
+        final FutureTask<SharedPreferences> notify = new FutureTask<SharedPreferences>(new NotifyListener(loaded, listener));
+        mExecutor.execute(notify);
+        return notify;
     }
 
     private static class LoadSharedPreferences implements Callable<SharedPreferences> {
-        public LoadSharedPreferences(Context context, String prefsName, OnPrefsLoadedListener listener) {
+        public LoadSharedPreferences(Context context, String prefsName, boolean mapped) {
             mContext = context;
             mPrefsName = prefsName;
-            mListener = listener;
+            mMapped = mapped;
         }
 
         @Override
         public SharedPreferences call() {
-            final SharedPreferences ret = mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
-            if (null != mListener) {
-                mListener.onPrefsLoaded(ret);
+            if (mMapped) {
+                final MappedPreferences ret = MappedPreferences.getInstance(mContext, mPrefsName);
+                ret.getAll(); // Opens and reads the file here rather than on first use
+                return ret;
             }
-            return ret;
+            // In case the option was on before, so the XML file doesn't hold stale values
+            MappedPreferences.restoreXml(mContext, mPrefsName);
+            return mContext.getSharedPreferences(mPrefsName, Context.MODE_PRIVATE);
         }
 
         private final Context mContext;
         private final String mPrefsName;
+        private final boolean mMapped;
+    }
+
+    private static class NotifyListener implements Callable<SharedPreferences> {
+        public NotifyListener(Future<SharedPreferences> loaded, OnPrefsLoadedListener listener) {
+            mLoaded = loaded;
+            mListener = listener;
+        }
+
+        @Override
+        public SharedPreferences call() throws ExecutionException, InterruptedException {
+            final SharedPreferences ret = mLoaded.get();
+            mListener.onPrefsLoaded(ret);
+            return ret;
+        }
+
+        private final Future<SharedPreferences> mLoaded;
         private final OnPrefsLoadedListener mListener;
     }
 
-    private final Executor mExecutor;
+    private final ThreadPoolExecutor mExecutor;
+    private final Map<Pair<Context, String>, Future<SharedPreferences>> mLoaded;
+
+    // HevoAPI keeps its state in four files, which can then all be read at once
+    private static final int LOADER_THREADS = 4;
+    private static final String MAPPED_KEY_SUFFIX = ".mapped";
+    private static final long LOADER_KEEP_ALIVE_SECONDS = 5;
 }
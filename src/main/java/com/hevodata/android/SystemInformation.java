@@ -18,8 +18,6 @@ import android.view.WindowManager;
 
 import com.hevodata.android.util.HLog;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
 /**
  * Abstracts away possibly non-present system information classes,
@@ -40,69 +38,76 @@ class SystemInformation {
 
     private SystemInformation(Context context) {
         mContext = context;
+    }
 
-        PackageManager packageManager = mContext.getPackageManager();
-
-        String foundAppVersionName = null;
-        Integer foundAppVersionCode = null;
-        try {
-            PackageInfo packageInfo = packageManager.getPackageInfo(mContext.getPackageName(), 0);
-            foundAppVersionName = packageInfo.versionName;
-            foundAppVersionCode = packageInfo.versionCode;
-        } catch (NameNotFoundException e) {
-            HLog.w(LOGTAG, "System information constructed with a context that apparently doesn't exist.");
-        }
-
-        ApplicationInfo applicationInfo = context.getApplicationInfo();
-        int appNameStringId = applicationInfo.labelRes;
+    // Everything below asks the system for unchanging facts, each costing a call into another
+    // process, so they are only looked up when first used, normally on the worker thread, and
+    // then kept. Lookups may race, but they always find the same answer.
 
-        mAppVersionName = foundAppVersionName;
-        mAppVersionCode = foundAppVersionCode;
-        mAppName = appNameStringId == 0 ? applicationInfo.nonLocalizedLabel == null ? "Misc" : applicationInfo.nonLocalizedLabel.toString() : context.getString(appNameStringId);
+    public String getAppVersionName() {
+        loadPackageInfo();
+        return mAppVersionName;
+    }
 
-        // We can't count on these features being available, since we need to
-        // run on old devices. Thus, the reflection fandango below...
-        Class<? extends PackageManager> packageManagerClass = packageManager.getClass();
+    public Integer getAppVersionCode() {
+        loadPackageInfo();
+        return mAppVersionCode;
+    }
 
-        Method hasSystemFeatureMethod = null;
-        try {
-            hasSystemFeatureMethod = packageManagerClass.getMethod("hasSystemFeature", String.class);
-        } catch (NoSuchMethodException e) {
-            // Nothing, this is an expected outcome
+    public String getAppName() {
+        String ret = mAppName;
+        if (null == ret) {
+            final ApplicationInfo applicationInfo = mContext.getApplicationInfo();
+            final int appNameStringId = applicationInfo.labelRes;
+            ret = appNameStringId == 0 ? applicationInfo.nonLocalizedLabel == null ? "Misc" : applicationInfo.nonLocalizedLabel.toString() : mContext.getString(appNameStringId);
+            mAppName = ret;
         }
+        return ret;
+    }
 
-        Boolean foundNFC = null;
-        Boolean foundTelephony = null;
-        if (null != hasSystemFeatureMethod) {
-            try {
-                foundNFC = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.nfc");
-                foundTelephony = (Boolean) hasSystemFeatureMethod.invoke(packageManager, "android.hardware.telephony");
-            } catch (InvocationTargetException e) {
-                HLog.w(LOGTAG, "System version appeared to support PackageManager.hasSystemFeature, but we were unable to call it.");
-            } catch (IllegalAccessException e) {
-                HLog.w(LOGTAG, "System version appeared to support PackageManager.hasSystemFeature, but we were unable to call it.");
-            }
+    // hasSystemFeature and both features exist on every version we support, so no reflection is needed
+    public boolean hasNFC() {
+        Boolean ret = mHasNFC;
+        if (null == ret) {
+            ret = mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC);
+            mHasNFC = ret;
         }
-
-        mHasNFC = foundNFC;
-        mHasTelephony = foundTelephony;
-        mDisplayMetrics = new DisplayMetrics();
-
-        Display display = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-        display.getMetrics(mDisplayMetrics);
+        return ret;
     }
 
-    public String getAppVersionName() { return mAppVersionName; }
-
-    public Integer getAppVersionCode() { return mAppVersionCode; }
-
-    public String getAppName() { return mAppName; }
-
-    public boolean hasNFC() { return mHasNFC; }
+    public boolean hasTelephony() {
+        Boolean ret = mHasTelephony;
+        if (null == ret) {
+            ret = mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_TELEPHONY);
+            mHasTelephony = ret;
+        }
+        return ret;
+    }
 
-    public boolean hasTelephony() { return mHasTelephony; }
+    public DisplayMetrics getDisplayMetrics() {
+        DisplayMetrics ret = mDisplayMetrics;
+        if (null == ret) {
+            ret = new DisplayMetrics();
+            final Display display = ((WindowManager) mContext.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+            display.getMetrics(ret);
+            mDisplayMetrics = ret;
+        }
+        return ret;
+    }
 
-    public DisplayMetrics getDisplayMetrics() { return mDisplayMetrics; }
+    private void loadPackageInfo() {
+        if (mPackageInfoLoaded) {
+            return;
+        }
+        try {
+            final PackageInfo packageInfo = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0);
+            mAppVersionName = packageInfo.versionName;
+            mAppVersionCode = packageInfo.versionCode;
+        } catch (NameNotFoundException e) {
+            HLog.w(LOGTAG, "System information constructed with a context that apparently doesn't exist.");
+        }
+        mPackageInfoLoaded = true;
+    }
 
     public String getPhoneRadioType() {
         String ret = null;
@@ -182,6 +187,9 @@ class SystemInformation {
     }
 
     public String getBluetoothVersion() {
+        if (null != mBluetoothVersion) {
+            return mBluetoothVersion;
+        }
         String bluetoothVersion = "none";
         if(android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 &&
                 mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -189,18 +197,22 @@ class SystemInformation {
         } else if(mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)) {
             bluetoothVersion = "classic";
         }
+        mBluetoothVersion = bluetoothVersion;
         return bluetoothVersion;
     }
 
     private final Context mContext;
 
-    // Unchanging facts
-    private final Boolean mHasNFC;
-    private final Boolean mHasTelephony;
-    private final DisplayMetrics mDisplayMetrics;
-    private final String mAppVersionName;
-    private final Integer mAppVersionCode;
-    private final String mAppName;
+    // Unchanging facts, null until first looked up
+    private volatile Boolean mHasNFC;
+    private volatile Boolean mHasTelephony;
+    private volatile DisplayMetrics mDisplayMetrics;
+    private volatile String mAppName;
+    private volatile String mBluetoothVersion;
+    // Written before mPackageInfoLoaded, which publishes them
+    private String mAppVersionName;
+    private Integer mAppVersionCode;
+    private volatile boolean mPackageInfoLoaded;
 
     private static SystemInformation sInstance;
     private static final Object sInstanceLock = new Object();
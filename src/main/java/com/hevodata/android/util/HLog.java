@@ -29,6 +29,23 @@ public class HLog {
         }
     }
 
+    /**
+     * Logs String.format(format, arg) at VERBOSE. The message is only formatted, and arg's
+     * toString only called, when VERBOSE messages are logged. Note that a Throwable arg
+     * selects {@link #v(String, String, Throwable)} instead.
+     */
+    public static void v(String tag, String format, Object arg) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, String.format(format, arg));
+        }
+    }
+
+    public static void v(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(VERBOSE)) {
+            Log.v(tag, String.format(format, arg1, arg2));
+        }
+    }
+
     public static void d(String tag, String message) {
         if (shouldLog(DEBUG)) {
             Log.d(tag, message);
@@ -41,6 +58,21 @@ public class HLog {
         }
     }
 
+    /**
+     * Logs String.format(format, arg) at DEBUG, formatting only when DEBUG messages are logged.
+     */
+    public static void d(String tag, String format, Object arg) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, String.format(format, arg));
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (shouldLog(DEBUG)) {
+            Log.d(tag, String.format(format, arg1, arg2));
+        }
+    }
+
     public static void i(String tag, String message) {
         if (shouldLog(INFO)) {
             Log.i(tag, message);
@@ -89,6 +121,21 @@ public class HLog {
         }
     }
 
+    /**
+     * Use to skip building messages that would not be logged, for example
+     * <pre>
+     * if (HLog.isLoggable(HLog.VERBOSE)) {
+     *     HLog.v(LOGTAG, "Queue depth " + depth);
+     * }
+     * </pre>
+     *
+     * @param level one of VERBOSE, DEBUG, INFO, WARN or ERROR
+     * @return true if messages at the given level are logged
+     */
+    public static boolean isLoggable(int level) {
+        return shouldLog(level);
+    }
+
     private static boolean shouldLog(int level) {
         return sMinLevel <= level;
     }
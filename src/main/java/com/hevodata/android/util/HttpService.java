@@ -89,7 +89,7 @@ public class HttpService implements RemoteService {
             String endpointUrl, String rawMessage, SSLSocketFactory socketFactory)
             throws ServiceUnavailableException, IOException {
 
-        HLog.v(LOGTAG, "Attempting request to " + endpointUrl);
+        HLog.v(LOGTAG, "Attempting request to %s", endpointUrl);
 
         byte[] response = null;
 